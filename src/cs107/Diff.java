@@ -1,13 +1,39 @@
 package cs107;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 public final class Diff {
 
+    /**
+     * Default number of mismatching ranges (or pixel regions) printed
+     */
+    public static final int DEFAULT_MAX_REPORTS = 100;
+
+    /**
+     * Mismatching ranges separated by fewer equal bytes than this are reported as one range
+     */
+    private static final int MERGE_GAP = 8;
+
+    /**
+     * Size of the file windows mapped at once
+     */
+    private static final long MAP_WINDOW = 1L << 30;
+
     // ============================================================================================
     // ======================================= DIFF API ===========================================
     // ============================================================================================
     public static void diff(byte[] b1, byte[] b2){
+        diff(b1, b2, DEFAULT_MAX_REPORTS);
+    }
+
+    public static void diff(byte[] b1, byte[] b2, int max_reports){
         assert b1 != null;
         assert b2 != null;
 
@@ -15,20 +41,113 @@ public final class Diff {
             showSameFileMessage();
         else {
             var size_to_check = b1.length != b2.length ? sizeWarning(b1.length, b2.length) : b1.length;
-            compareAndShow(b1, b2, size_to_check);
+            var reporter = new RangeReporter(max_reports);
+            compareAndShow(ByteBuffer.wrap(b1, 0, (int) size_to_check), ByteBuffer.wrap(b2, 0, (int) size_to_check), 0, reporter);
+            reporter.finish();
         }
 
         showEnd();
     }
 
     public static void diff(String file_1, String file_2){
+        diff(file_1, file_2, DEFAULT_MAX_REPORTS);
+    }
+
+    /**
+     * Compare two files of any size. The files are memory mapped and the equal parts are
+     * skipped with vectorized mismatch searches
+     * @param file_1 (String) - Path to the first file
+     * @param file_2 (String) - Path to the second file
+     * @param max_reports (int) - Maximal number of mismatching ranges printed
+     */
+    public static void diff(String file_1, String file_2, int max_reports){
         assert file_1 != null;
         assert file_2 != null;
 
-        var b1 = Helper.read(file_1);
-        var b2 = Helper.read(file_2);
-        showHeader(file_1, file_2, b1, b2);
-        diff(b1, b2);
+        try (var c1 = FileChannel.open(Path.of(file_1), StandardOpenOption.READ);
+             var c2 = FileChannel.open(Path.of(file_2), StandardOpenOption.READ)) {
+            long size_1 = c1.size();
+            long size_2 = c2.size();
+            showHeader(file_1, file_2, size_1, size_2);
+
+            var size_to_check = size_1 != size_2 ? sizeWarning(size_1, size_2) : size_1;
+            var reporter = new RangeReporter(max_reports);
+            for (long position = 0; position < size_to_check; position += MAP_WINDOW) {
+                long length = Math.min(MAP_WINDOW, size_to_check - position);
+                compareAndShow(
+                        c1.map(FileChannel.MapMode.READ_ONLY, position, length),
+                        c2.map(FileChannel.MapMode.READ_ONLY, position, length),
+                        position, reporter);
+            }
+            if (size_1 == size_2 && reporter.ranges == 0)
+                showSameFileMessage();
+            else
+                reporter.finish();
+        } catch (IOException e){
+            Helper.fail("An error occurred while comparing \"%s\" and \"%s\" : %s", file_1, file_2, e.getMessage());
+        }
+
+        showEnd();
+    }
+
+    /**
+     * Compare the pixels of two "Quite Ok Image" files rather than their bytes, and print the
+     * regions of the images that differ
+     * @param file_1 (String) - Path to the first file
+     * @param file_2 (String) - Path to the second file
+     * @param max_reports (int) - Maximal number of regions printed
+     */
+    public static void diffImages(String file_1, String file_2, int max_reports){
+        assert file_1 != null;
+        assert file_2 != null;
+
+        try (var s1 = new BufferedInputStream(Files.newInputStream(Path.of(file_1)));
+             var s2 = new BufferedInputStream(Files.newInputStream(Path.of(file_2)))) {
+            var d1 = new QOIStreamDecoder(s1);
+            var d2 = new QOIStreamDecoder(s2);
+            showImageHeader(file_1, file_2, d1, d2);
+            if (d1.width() != d2.width() || d1.height() != d2.height()) {
+                System.out.println("== The two images have different dimensions, their pixels are not compared");
+                showEnd();
+                return;
+            }
+            if (d1.channels() != d2.channels() || d1.colorSpace() != d2.colorSpace())
+                System.out.println("== WARNING : The two images have different channels or color space");
+
+            int width = d1.width();
+            int[] row_1 = new int[width];
+            int[] row_2 = new int[width];
+            var reporter = new RegionReporter(max_reports);
+            for (int y = 0; y < d1.height(); y++) {
+                d1.nextRow(row_1);
+                d2.nextRow(row_2);
+                int x = Arrays.mismatch(row_1, row_2);
+                if (x < 0) {
+                    reporter.closeRegion();
+                    continue;
+                }
+                int first = x;
+                int last = x;
+                int count = 0;
+                while (x >= 0) {
+                    int end = x;
+                    while (end < width && row_1[end] != row_2[end]) end++;
+                    count += end - x;
+                    last = end - 1;
+                    int next = Arrays.mismatch(row_1, end, width, row_2, end, width);
+                    x = next < 0 ? -1 : end + next;
+                }
+                reporter.addRow(y, first, last, count);
+            }
+            reporter.closeRegion();
+            if (reporter.regions == 0)
+                System.out.println("== The two images have the same pixels");
+            else
+                reporter.finish();
+        } catch (IOException e){
+            Helper.fail("An error occurred while comparing \"%s\" and \"%s\" : %s", file_1, file_2, e.getMessage());
+        }
+        showEnd();
     }
 
     // ============================================================================================
@@ -37,15 +156,22 @@ public final class Diff {
     // Hide default constructor
     private Diff(){}
 
-    private static void showHeader(String file_1, String file_2, byte[] stream_f1, byte[] stream_f2){
+    private static void showHeader(String file_1, String file_2, long size_1, long size_2){
         System.out.println("========================================== DIFF ==========================================");
-        System.out.printf("== File 1 : '%s', size = %d bytes %n", file_1, stream_f1.length);
-        System.out.printf("== File 2 : '%s', size = %d bytes %n", file_2, stream_f2.length);
+        System.out.printf("== File 1 : '%s', size = %d bytes %n", file_1, size_1);
+        System.out.printf("== File 2 : '%s', size = %d bytes %n", file_2, size_2);
+        System.out.println("==========================================================================================");
+    }
+
+    private static void showImageHeader(String file_1, String file_2, QOIStreamDecoder d1, QOIStreamDecoder d2){
+        System.out.println("======================================= IMAGE DIFF =======================================");
+        System.out.printf("== File 1 : '%s', %d x %d, %d channels %n", file_1, d1.width(), d1.height(), d1.channels());
+        System.out.printf("== File 2 : '%s', %d x %d, %d channels %n", file_2, d2.width(), d2.height(), d2.channels());
         System.out.println("==========================================================================================");
     }
 
-    private static int sizeWarning(int size_1, int size_2){
-        var min = Integer.min(size_1, size_2);
+    private static long sizeWarning(long size_1, long size_2){
+        var min = Long.min(size_1, size_2);
         System.out.printf("== WARNING : The two input have different sizes, we will only check the %d first bytes%n", min);
         return min;
     }
@@ -54,11 +180,22 @@ public final class Diff {
         System.out.println("== WARNING : The two inputs have the same content");
     }
 
-    private static void compareAndShow(byte[] b1, byte[] b2, int size_to_check){
-        for (var i = 0; i < size_to_check; i++){
-            if (b1[i] != b2[i]){
-                System.out.printf("[%06X] ~ %02x ~ %02x%n", i, b1[i], b2[i]);
-            }
+    /**
+     * Report the mismatching ranges of two buffers of the same size, skipping the equal bytes with
+     * {@link ByteBuffer#mismatch(ByteBuffer)}
+     */
+    private static void compareAndShow(ByteBuffer b1, ByteBuffer b2, long base, RangeReporter reporter){
+        int size = b1.limit();
+        int i = 0;
+        while (i < size) {
+            int m = b1.slice(i, size - i).mismatch(b2.slice(i, size - i));
+            if (m < 0)
+                break;
+            i += m;
+            int end = i;
+            while (end < size && b1.get(end) != b2.get(end)) end++;
+            reporter.add(base + i, base + end, b1.get(i), b2.get(i));
+            i = end;
         }
     }
 
@@ -66,4 +203,107 @@ public final class Diff {
         System.out.println("========================================= END DIFF =======================================");
     }
 
-}
\ No newline at end of file
+    /**
+     * Coalesces the mismatching bytes into ranges and prints the first ones
+     */
+    private static final class RangeReporter {
+        private final int max_reports;
+        private long ranges = 0;
+        private long bytes = 0;
+        // range being built, start < 0 if none
+        private long start = -1;
+        private long end;
+        private byte first_1;
+        private byte first_2;
+        private long different;
+
+        private RangeReporter(int max_reports){
+            this.max_reports = max_reports;
+        }
+
+        private void add(long from, long to, byte b1, byte b2){
+            bytes += to - from;
+            if (start >= 0 && from - end < MERGE_GAP) {
+                end = to;
+                different += to - from;
+                return;
+            }
+            flush();
+            start = from;
+            end = to;
+            first_1 = b1;
+            first_2 = b2;
+            different = to - from;
+        }
+
+        private void flush(){
+            if (start < 0)
+                return;
+            if (ranges < max_reports) {
+                if (end - start == 1)
+                    System.out.printf("[%06X] ~ %02x ~ %02x%n", start, first_1, first_2);
+                else
+                    System.out.printf("[%06X-%06X] ~ %d bytes differ, first %02x ~ %02x%n", start, end - 1, different, first_1, first_2);
+            }
+            ranges++;
+            start = -1;
+        }
+
+        private void finish(){
+            flush();
+            if (ranges > max_reports)
+                System.out.printf("== ... %d more ranges not shown%n", ranges - max_reports);
+            System.out.printf("== %d differing bytes in %d ranges%n", bytes, ranges);
+        }
+    }
+
+    /**
+     * Merges consecutive rows with differing pixels into rectangular regions and prints the first ones
+     */
+    private static final class RegionReporter {
+        private final int max_reports;
+        private long regions = 0;
+        private long pixels = 0;
+        // region being built, top < 0 if none
+        private int top = -1;
+        private int bottom;
+        private int left;
+        private int right;
+        private long count;
+
+        private RegionReporter(int max_reports){
+            this.max_reports = max_reports;
+        }
+
+        private void addRow(int y, int first, int last, int different){
+            pixels += different;
+            if (top < 0) {
+                top = y;
+                left = first;
+                right = last;
+                count = 0;
+            }
+            bottom = y;
+            left = Math.min(left, first);
+            right = Math.max(right, last);
+            count += different;
+        }
+
+        private void closeRegion(){
+            if (top < 0)
+                return;
+            if (regions < max_reports)
+                System.out.printf("[x %d-%d, y %d-%d] ~ %d x %d region, %d pixels differ%n",
+                        left, right, top, bottom, right - left + 1, bottom - top + 1, count);
+            regions++;
+            top = -1;
+        }
+
+        private void finish(){
+            if (regions > max_reports)
+                System.out.printf("== ... %d more regions not shown%n", regions - max_reports);
+            System.out.printf("== %d differing pixels in %d regions%n", pixels, regions);
+        }
+    }
+
+}
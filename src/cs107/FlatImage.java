@@ -0,0 +1,265 @@
+package cs107;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Image stored in one flat array of ARGB pixels (the format of {@link Helper.Image#data()}).
+ * <p>
+ * The pixel {@code (x, y)} is at {@code offset + y * stride + x} in the array. Crops and tiles
+ * are views sharing the array of the image they come from : writing a pixel of a view writes
+ * the pixel of the image.
+ */
+public final class FlatImage {
+
+    // pixels of a row and of a column sampled by hashCode
+    private static final int HASHED_PIXELS_PER_SIDE = 8;
+
+    private final int[] pixels;
+    private final int offset;
+    private final int stride;
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+
+    /**
+     * Allocate an image, all its pixels are 0
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     */
+    public FlatImage(int width, int height, byte channels, byte colorSpace){
+        this(new int[Math.multiplyExact(width, height)], 0, width, width, height, channels, colorSpace);
+    }
+
+    private FlatImage(int[] pixels, int offset, int stride, int width, int height, byte channels, byte colorSpace){
+        assert pixels != null;
+        assert width > 0 && height > 0 && stride >= width && offset >= 0;
+        assert offset + (long) (height - 1) * stride + width <= pixels.length;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+        this.pixels = pixels;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+    }
+
+    /**
+     * Create an image over an existing array, without copying it
+     * @param pixels (int[]) - ARGB pixels
+     * @param offset (int) - Position of the pixel (0, 0) in the array
+     * @param stride (int) - Distance in the array between two vertically adjacent pixels
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     * @return (FlatImage) - The image
+     */
+    public static FlatImage wrap(int[] pixels, int offset, int stride, int width, int height, byte channels, byte colorSpace){
+        return new FlatImage(pixels, offset, stride, width, height, channels, colorSpace);
+    }
+
+    /**
+     * Copy an image stored as rows
+     * @param image (Helper.Image) - Image to copy
+     * @return (FlatImage) - The copy
+     */
+    public static FlatImage of(Helper.Image image){
+        assert image != null;
+        int[][] data = image.data();
+        var copy = new FlatImage(data[0].length, data.length, image.channels(), image.color_space());
+        for (int y = 0; y < copy.height; y++) {
+            System.arraycopy(data[y], 0, copy.pixels, y * copy.width, copy.width);
+        }
+        return copy;
+    }
+
+    /**
+     * Decode all the remaining pixels of a decoder into a new image
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel
+     * @return (FlatImage) - The decoded image
+     */
+    public static FlatImage decode(QOIStreamDecoder decoder){
+        assert decoder != null;
+        var image = new FlatImage(decoder.width(), decoder.height(), decoder.channels(), decoder.colorSpace());
+        decoder.next(image.pixels, 0, image.pixels.length);
+        decoder.checkEnd();
+        return image;
+    }
+
+    // ==================================================================================
+    // ================================ IMAGE INFORMATION ===============================
+    // ==================================================================================
+
+    public int width(){
+        return width;
+    }
+
+    public int height(){
+        return height;
+    }
+
+    public byte channels(){
+        return channels;
+    }
+
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (int[]) - The array holding the pixels, shared with all the views of the image
+     */
+    public int[] pixels(){
+        return pixels;
+    }
+
+    /**
+     * @return (int) - Position of the pixel (0, 0) in {@link #pixels()}
+     */
+    public int offset(){
+        return offset;
+    }
+
+    /**
+     * @return (int) - Distance in {@link #pixels()} between two vertically adjacent pixels
+     */
+    public int stride(){
+        return stride;
+    }
+
+    // ==================================================================================
+    // ================================= PIXEL ACCESS ===================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Position of the pixel (x, y) in {@link #pixels()}
+     */
+    public int index(int x, int y){
+        assert x >= 0 && x < width && y >= 0 && y < height;
+        return offset + y * stride + x;
+    }
+
+    public int get(int x, int y){
+        return pixels[index(x, y)];
+    }
+
+    public void set(int x, int y, int pixel){
+        pixels[index(x, y)] = pixel;
+    }
+
+    /**
+     * @return (boolean) - true if every pixel has an alpha of 255
+     */
+    public boolean isOpaque(){
+        for (int y = 0; y < height; y++) {
+            int and = 0xFF000000;
+            for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                and &= pixels[i];
+            }
+            if (and != 0xFF000000) return false;
+        }
+        return true;
+    }
+
+    // ==================================================================================
+    // ===================================== VIEWS ======================================
+    // ==================================================================================
+
+    /**
+     * Rectangular region of the image, sharing its pixels
+     * @param x (int) - Column of the top left pixel of the region
+     * @param y (int) - Row of the top left pixel of the region
+     * @param width (int) - Width of the region
+     * @param height (int) - Height of the region
+     * @return (FlatImage) - View of the region
+     */
+    public FlatImage crop(int x, int y, int width, int height){
+        assert x >= 0 && y >= 0 && width > 0 && height > 0;
+        assert x + width <= this.width && y + height <= this.height;
+        return new FlatImage(pixels, index(x, y), stride, width, height, channels, colorSpace);
+    }
+
+    /**
+     * Split the image in tiles, row after row. The tiles of the last column and of the last
+     * row are smaller when the dimensions of the image are not multiples of the tile size
+     * @param tileWidth (int) - Width of the tiles
+     * @param tileHeight (int) - Height of the tiles
+     * @return (List) - Views of the tiles
+     */
+    public List<FlatImage> tiles(int tileWidth, int tileHeight){
+        assert tileWidth > 0 && tileHeight > 0;
+        var tiles = new ArrayList<FlatImage>();
+        for (int y = 0; y < height; y += tileHeight) {
+            for (int x = 0; x < width; x += tileWidth) {
+                tiles.add(crop(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return (FlatImage) - Copy of the image in a new array, with no padding between the rows
+     */
+    public FlatImage copy(){
+        var copy = new FlatImage(width, height, channels, colorSpace);
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, offset + y * stride, copy.pixels, y * width, width);
+        }
+        return copy;
+    }
+
+    /**
+     * @return (Helper.Image) - Copy of the image stored as rows
+     */
+    public Helper.Image toImage(){
+        int[][] data = new int[height][];
+        for (int y = 0; y < height; y++) {
+            data[y] = Arrays.copyOfRange(pixels, offset + y * stride, offset + y * stride + width);
+        }
+        return Helper.generateImage(data, channels, colorSpace);
+    }
+
+    // ==================================================================================
+    // ================================ OBJECT METHODS ==================================
+    // ==================================================================================
+
+    @Override
+    public boolean equals(Object obj){
+        if (this == obj) return true;
+        if (!(obj instanceof FlatImage that)) return false;
+        if (width != that.width || height != that.height || channels != that.channels || colorSpace != that.colorSpace)
+            return false;
+        for (int y = 0; y < height; y++) {
+            int from = offset + y * stride;
+            int thatFrom = that.offset + y * that.stride;
+            if (!Arrays.equals(pixels, from, from + width, that.pixels, thatFrom, thatFrom + width))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hash of the dimensions and of a few pixels on a fixed grid, it takes the same time for
+     * any size. Images that are equal have the same pixels, hence the same hash
+     */
+    @Override
+    public int hashCode(){
+        int hash = 31 * (31 * (31 * width + height) + channels) + colorSpace;
+        int stepX = Math.max(1, width / HASHED_PIXELS_PER_SIDE);
+        int stepY = Math.max(1, height / HASHED_PIXELS_PER_SIDE);
+        for (int y = 0; y < height; y += stepY) {
+            for (int x = 0; x < width; x += stepX) {
+                hash = 31 * hash + pixels[offset + y * stride + x];
+            }
+        }
+        return hash;
+    }
+
+}
@@ -1,7 +1,27 @@
 package cs107;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 public final class Hexdump {
 
+    private static final int BYTES_PER_LINE = 10;
+
+    /**
+     * Size of the blocks read from a file, a multiple of {@link #BYTES_PER_LINE}
+     */
+    private static final int BUFFER_SIZE = BYTES_PER_LINE << 13;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final String RULE = "==========================================================================================";
+
     // ============================================================================================
     // ================================== HEXDUMP API =============================================
     // ============================================================================================
@@ -20,24 +40,79 @@ public final class Hexdump {
         assert binary != null : "(hexdump) You've used a null array, cannot dump the null array";
         assert  0 <= start_address && start_address <= end_address;
         assert end_address < binary.length;
-        var mod_length = (end_address - start_address + 1) % 10;
-        var div_length = (end_address - start_address + 1) / 10;
-        System.out.println("==========================================================================================");
-        for(var i = 0; i < div_length; i++)
-            System.out.print(dump_10bytes(start_address + i * 10, binary));
-        System.out.print(switch (mod_length){
-            case 1 -> dump_1byte(start_address + div_length * 10, binary);
-            case 2 -> dump_2bytes(start_address + div_length * 10, binary);
-            case 3 -> dump_3bytes(start_address + div_length * 10, binary);
-            case 4 -> dump_4bytes(start_address + div_length * 10, binary);
-            case 5 -> dump_5bytes(start_address + div_length * 10, binary);
-            case 6 -> dump_6bytes(start_address + div_length * 10, binary);
-            case 7 -> dump_7bytes(start_address + div_length * 10, binary);
-            case 8 -> dump_8bytes(start_address + div_length * 10, binary);
-            case 9 -> dump_9bytes(start_address + div_length * 10, binary);
-            default -> ""; // Dead code
-        });
-        System.out.println("==========================================================================================");
+        var out = standardOutput();
+        try {
+            var line = new StringBuilder(128);
+            writeLine(out, RULE);
+            for (var address = start_address; address <= end_address; address += BYTES_PER_LINE) {
+                dumpLine(line, address, binary, address, Math.min(BYTES_PER_LINE, end_address - address + 1));
+                out.append(line);
+                line.setLength(0);
+            }
+            writeLine(out, RULE);
+            out.flush();
+        } catch (IOException e){
+            Helper.fail("An error occurred while writing the dump : %s", e.getMessage());
+        }
+    }
+
+    //  Print the content of a file of any size in a hexadecimal form, without loading it in memory
+    public static void hexdump(String file){
+        hexdump(file, standardOutput());
+    }
+
+    /**
+     * Write the content of a file of any size in a hexadecimal form. The file is read by blocks
+     * and the lines are the same as {@link #hexdump(byte[])}
+     * @param file (String) - Path to the file
+     * @param out (Writer) - Destination of the dump, flushed but not closed
+     */
+    public static void hexdump(String file, Writer out){
+        assert file != null && out != null;
+        try (var channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            var line = new StringBuilder(128);
+            long address = 0;
+            writeLine(out, RULE);
+            int length;
+            while ((length = fill(channel, buffer)) > 0) {
+                byte[] block = buffer.array();
+                for (var i = 0; i < length; i += BYTES_PER_LINE) {
+                    dumpLine(line, address + i, block, i, Math.min(BYTES_PER_LINE, length - i));
+                    out.append(line);
+                    line.setLength(0);
+                }
+                address += length;
+            }
+            writeLine(out, RULE);
+            out.flush();
+        } catch (IOException e){
+            Helper.fail("An error occurred while dumping \"%s\" : %s", file, e.getMessage());
+        }
+    }
+
+    //  Print the chunks of a "Quite Ok Image" file, without loading it in memory
+    public static void disassemble(String file){
+        disassemble(file, standardOutput());
+    }
+
+    /**
+     * Write the chunks of a "Quite Ok Image" file of any size, one per line, with their operation,
+     * the position of the pixels they produce and the changes of the index table
+     * <p>
+     * The file is decoded as a decoder of the specification would do : the index table is updated
+     * with every pixel. Truncated data, a wrong EOF marker and trailing bytes are reported
+     * @param file (String) - Path to the file
+     * @param out (Writer) - Destination of the listing, flushed but not closed
+     */
+    public static void disassemble(String file, Writer out){
+        assert file != null && out != null;
+        try (var channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            new Disassembler(channel, out).run();
+            out.flush();
+        } catch (IOException e){
+            Helper.fail("An error occurred while disassembling \"%s\" : %s", file, e.getMessage());
+        }
     }
 
     // ============================================================================================
@@ -45,113 +120,259 @@ public final class Hexdump {
     // Hide default constructor
     private Hexdump(){}
 
-    private static String dump_1byte(int addr, byte[] b){
-        var fmt = "%06X : %02X | %c |%n";
-        return String.format(fmt, addr, b[addr], display_char(b[addr]));
-    }
-    private static String dump_2bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X | %c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr + 1],
-                display_char(b[addr]),
-                display_char(b[addr + 1]));
-    }
-    private static String dump_3bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X | %c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1], b[addr+2],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]));
+    private static Writer standardOutput(){
+        return new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
     }
 
-    private static String dump_4bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X | %c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]));
+    private static void writeLine(Writer out, String text) throws IOException {
+        out.write(text);
+        out.write(System.lineSeparator());
     }
 
-    private static String dump_5bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X | %c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]));
+    /**
+     * Read from the channel until the buffer is full or the end of the file
+     * @return (int) - Number of bytes at the start of the buffer array
+     */
+    private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        return buffer.position();
     }
 
-    private static String dump_6bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]));
+    //  Format up to 10 bytes, lines with 6 to 8 bytes have the extra space of the original layout
+    private static void dumpLine(StringBuilder line, long address, byte[] b, int offset, int count){
+        appendHex(line, address, 6);
+        line.append(" :");
+        for (var i = 0; i < count; i++) {
+            line.append(' ');
+            appendHex(line, b[offset + i] & 0xFF, 2);
+        }
+        line.append(count >= 6 && count <= 8 ? "  | " : " | ");
+        for (var i = 0; i < count; i++)
+            line.append(display_char(b[offset + i]));
+        line.append(" |").append(System.lineSeparator());
     }
 
-    private static String dump_7bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]));
+    private static void appendHex(StringBuilder line, long value, int digits){
+        var length = Math.max(digits, (64 - Long.numberOfLeadingZeros(value) + 3) / 4);
+        for (var shift = (length - 1) * 4; shift >= 0; shift -= 4)
+            line.append(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
     }
 
-    private static String dump_8bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6], b[addr+7],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]));
+    private static char display_char(byte c){
+        return Character.isISOControl(c) ? '.' : (char) c;
     }
 
-    private static String dump_9bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X %02X | %c%c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                b[addr+7], b[addr+8],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]),
-                display_char(b[addr+8]));
-    }
+    /**
+     * Decodes the chunks of a file read by blocks and lists them
+     */
+    private static final class Disassembler {
 
-    private static String dump_10bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X | %c%c%c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                b[addr+7], b[addr+8],b[addr+9],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]),
-                display_char(b[addr+8]),
-                display_char(b[addr+9]));
-    }
+        private static final String[] OP_NAMES = {"RGB", "RGBA", "INDEX", "DIFF", "LUMA", "RUN"};
+        private static final int RGB = 0, RGBA = 1, INDEX = 2, DIFF = 3, LUMA = 4, RUN = 5;
 
+        private final FileChannel channel;
+        private final Writer out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final StringBuilder line = new StringBuilder(160);
+        private final int[] chunk = new int[QOISpecification.QOI_EOF.length];
+        private final long[] counts = new long[OP_NAMES.length];
+        private final int[] index = new int[64];
+        private long position = 0;
 
-    private static char display_char(byte c){
-        return Character.isISOControl(c) ? '.' : (char) c;
+        private Disassembler(FileChannel channel, Writer out){
+            this.channel = channel;
+            this.out = out;
+            buffer.limit(0);
+        }
+
+        private void run() throws IOException {
+            writeLine(out, RULE);
+            var header = new int[QOISpecification.HEADER_SIZE];
+            if (read(header, 0, header.length) != header.length || !hasMagic(header)) {
+                writeLine(out, "== Not a \"Quite Ok Image\" file");
+                writeLine(out, RULE);
+                return;
+            }
+            long width = toInt(header, 4) & 0xFFFFFFFFL;
+            long height = toInt(header, 8) & 0xFFFFFFFFL;
+            appendChunk(0, header, header.length, header.length);
+            line.append("HEADER ").append(width).append(" x ").append(height)
+                    .append(", ").append(header[12]).append(" channels, color space ").append(header[13]);
+            endLine();
+
+            long total = width * height;
+            long pixel = 0;
+            int previous = 0xFF000000;
+            while (pixel < total) {
+                long address = position;
+                int tag = read();
+                if (tag < 0) {
+                    line.append("== Truncated after ").append(pixel).append(" of ").append(total).append(" pixels");
+                    endLine();
+                    break;
+                }
+                int op = operation(tag);
+                int expected = op == RGB ? 4 : op == RGBA ? 5 : op == LUMA ? 2 : 1;
+                chunk[0] = tag;
+                int size = 1 + read(chunk, 1, expected - 1);
+                if (size < expected) {
+                    appendChunk(address, chunk, size, 5);
+                    line.append("truncated ").append(OP_NAMES[op]);
+                    endLine();
+                    break;
+                }
+                int current = previous, runLength = 1;
+                var arguments = new StringBuilder();
+                switch (op) {
+                    case RGB -> current = previous & 0xFF000000 | chunk[1] << 16 | chunk[2] << 8 | chunk[3];
+                    case RGBA -> current = chunk[4] << 24 | chunk[1] << 16 | chunk[2] << 8 | chunk[3];
+                    case INDEX -> {
+                        arguments.append(tag);
+                        current = index[tag];
+                    }
+                    case DIFF -> {
+                        int dr = (tag >> 4 & 3) - 2, dg = (tag >> 2 & 3) - 2, db = (tag & 3) - 2;
+                        arguments.append(dr).append(' ').append(dg).append(' ').append(db);
+                        current = add(previous, dr, dg, db);
+                    }
+                    case LUMA -> {
+                        int dg = (tag & 0x3F) - 32, dr_dg = (chunk[1] >> 4) - 8, db_dg = (chunk[1] & 0xF) - 8;
+                        arguments.append(dg).append(' ').append(dr_dg).append(' ').append(db_dg);
+                        current = add(previous, dr_dg + dg, dg, db_dg + dg);
+                    }
+                    default -> {
+                        runLength = (tag & 0x3F) + 1;
+                        arguments.append(runLength);
+                    }
+                }
+                counts[op]++;
+
+                appendChunk(address, chunk, size, 5);
+                int start = line.length();
+                line.append(OP_NAMES[op]).append(' ').append(arguments);
+                pad(start + 16);
+                line.append(" | #");
+                appendHex(line, Integer.rotateLeft(current, 8) & 0xFFFFFFFFL, 8);
+                line.append(" | pixel ").append(pixel);
+                if (runLength > 1)
+                    line.append('-').append(pixel + runLength - 1);
+                line.append(" (").append(pixel % width).append(", ").append(pixel / width).append(')');
+                if (pixel + runLength > total)
+                    line.append(" | run past the end of the image");
+                int hash = QOIStreamDecoder.hash(current);
+                if (index[hash] != current) {
+                    index[hash] = current;
+                    line.append(" | index[").append(hash).append("] <- #");
+                    appendHex(line, Integer.rotateLeft(current, 8) & 0xFFFFFFFFL, 8);
+                }
+                endLine();
+                pixel += runLength;
+                previous = current;
+            }
+
+            if (pixel >= total) {
+                long address = position;
+                int size = read(chunk, 0, chunk.length);
+                if (size > 0) {
+                    appendChunk(address, chunk, size, chunk.length);
+                    line.append(isEndMarker(size) ? "EOF" : "bad EOF marker");
+                    endLine();
+                }
+            }
+            long trailing = 0;
+            while (read() >= 0) trailing++;
+            if (trailing > 0) {
+                line.append("== ").append(trailing).append(" trailing bytes");
+                endLine();
+            }
+            line.append("== ");
+            for (int op = 0; op < OP_NAMES.length; op++)
+                line.append(op == 0 ? "" : ", ").append(OP_NAMES[op]).append(' ').append(counts[op]);
+            endLine();
+            writeLine(out, RULE);
+        }
+
+        private void appendChunk(long address, int[] bytes, int size, int width){
+            appendHex(line, address, 6);
+            line.append(" :");
+            for (int i = 0; i < size; i++) {
+                line.append(' ');
+                appendHex(line, bytes[i], 2);
+            }
+            pad(line.length() + 3 * (width - size));
+            line.append(" | ");
+        }
+
+        private void pad(int length){
+            while (line.length() < length) line.append(' ');
+        }
+
+        private void endLine() throws IOException {
+            line.append(System.lineSeparator());
+            out.append(line);
+            line.setLength(0);
+        }
+
+        private boolean isEndMarker(int size){
+            if (size != QOISpecification.QOI_EOF.length)
+                return false;
+            for (int i = 0; i < size; i++)
+                if (chunk[i] != QOISpecification.QOI_EOF[i])
+                    return false;
+            return true;
+        }
+
+        private static boolean hasMagic(int[] header){
+            for (int i = 0; i < QOISpecification.QOI_MAGIC.length; i++)
+                if (header[i] != QOISpecification.QOI_MAGIC[i])
+                    return false;
+            return true;
+        }
+
+        private static int operation(int tag){
+            if (tag == (QOISpecification.QOI_OP_RGB_TAG & 0xFF))
+                return RGB;
+            if (tag == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF))
+                return RGBA;
+            return switch (tag >> 6) {
+                case 0 -> INDEX;
+                case 1 -> DIFF;
+                case 2 -> LUMA;
+                default -> RUN;
+            };
+        }
+
+        private static int toInt(int[] bytes, int offset){
+            return bytes[offset] << 24 | bytes[offset + 1] << 16 | bytes[offset + 2] << 8 | bytes[offset + 3];
+        }
+
+        private static int add(int pixel, int dr, int dg, int db){
+            int r = (pixel >> 16) + dr & 0xFF, g = (pixel >> 8) + dg & 0xFF, b = pixel + db & 0xFF;
+            return pixel & 0xFF000000 | r << 16 | g << 8 | b;
+        }
+
+        private int read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                fill(channel, buffer);
+                buffer.flip();
+                if (!buffer.hasRemaining())
+                    return -1;
+            }
+            position++;
+            return buffer.get() & 0xFF;
+        }
+
+        private int read(int[] bytes, int offset, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                int b = read();
+                if (b < 0)
+                    return i;
+                bytes[offset + i] = b;
+            }
+            return length;
+        }
     }
 
-}
\ No newline at end of file
+}
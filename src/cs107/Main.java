@@ -1,6 +1,27 @@
 package cs107;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class Main {
 
@@ -28,6 +49,13 @@ public final class Main {
         assert testQoiOpLuma();
         assert testQoiOpRun();
         assert testEncodeData();
+        assert testStreamEncoder();
+        assert testQoiFileDetectAlpha();
+        assert testNearLossless();
+        assert testKernels();
+        assert testEstimator();
+        assert testFingerprint();
+        assert testIncremental();
 
         // ========== Test QOIDecoder ==========
         assert testDecodeHeader();
@@ -37,6 +65,25 @@ public final class Main {
         assert testDecodeQoiOpLuma();
         assert testDecodeQoiOpRun();
         assert testDecodeData();
+        assert testDecodeThumbnail();
+        assert testPyramid();
+
+        // ========== Test images and memory ==========
+        assert testFlatImage();
+        assert testOffHeapImage();
+        assert testMemoryBudget();
+
+        // ========== Test containers and I/O ==========
+        assert testSequence();
+        assert testDeflate();
+        assert testArchive();
+        assert testIntegrity();
+        assert testRawReader();
+        assert testImageIO();
+        assert testPngWriter();
+        assert testDedupCache();
+        assert testRowPublisher();
+        assert testServer();
 
         System.out.println("All the tests passes. Congratulations");
     }
@@ -72,6 +119,51 @@ public final class Main {
         return 100d * png / qoi;
     }
 
+    // ============================================================================================
+    // ============================== Test fixtures ===============================================
+    // ============================================================================================
+
+    /**
+     * @return (int[][]) - The 4 x 2 pixels of the encoding examples : a run, a diff, two lumas,
+     * an rgb and an rgba chunk. A new array on every call, the tests may edit it
+     */
+    private static int[][] samplePixels(){
+        return new int[][]{{0xFF000000, 0xFF000000, 0xFF000000, 0xFF00FF00}, {0xFFEEECEE, 0xFF000000, 0xFF646464, 0x5A5A5A5A}};
+    }
+
+    /**
+     * @return (Helper.Image) - The image of {@link #samplePixels()}, with 4 channels in sRGB
+     */
+    private static Helper.Image sampleImage(){
+        return Helper.generateImage(samplePixels(), QOISpecification.RGBA, QOISpecification.sRGB);
+    }
+
+    /**
+     * @return (int[][]) - Opaque pixels, all different up to 16 x 16, a misplaced pixel is always seen
+     */
+    private static int[][] gradientPixels(int width, int height){
+        int[][] pixels = new int[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y][x] = 0xFF000000 | (x * 16 & 0xFF) << 16 | (y * 16 & 0xFF) << 8 | (x * 7 + y * 11 & 0xFF);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @return (int[][]) - Pixels of random colors and alpha, the worst case of the encoder
+     */
+    private static int[][] randomPixels(Random random, int width, int height){
+        int[][] pixels = new int[height][width];
+        for (int[] row : pixels) {
+            for (int x = 0; x < width; x++) {
+                row[x] = random.nextInt();
+            }
+        }
+        return pixels;
+    }
+
     // ============================================================================================
     // ============================== ArrayUtils examples =========================================
     // ============================================================================================
@@ -229,6 +321,179 @@ public final class Main {
         return Arrays.equals(expected, encoding);
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testStreamEncoder(){
+        // the pixels of both rows in a single push
+        int[] pixels = Arrays.stream(samplePixels()).flatMapToInt(Arrays::stream).toArray();
+        byte[] expected = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        var output = new ByteArrayOutputStream();
+        var encoder = QOIStreamEncoder.data(output, 4, 2);
+        encoder.push(pixels, 0, pixels.length);
+        encoder.finish();
+        return Arrays.equals(expected, output.toByteArray());
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoiFileDetectAlpha(){
+        int[][] opaque = {{0xFF000000, 0xFF102030}, {0xFF102030, 0xFFFFFFFF}};
+        int[][] translucent = {{0xFF000000, 0x7F102030}, {0xFF102030, 0xFFFFFFFF}};
+        Helper.Image image = Helper.generateImage(opaque, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] detected = QOIEncoder.qoiFile(image, true);
+        byte[] kept = QOIEncoder.qoiFile(Helper.generateImage(translucent, QOISpecification.RGBA, QOISpecification.sRGB), true);
+        byte[] expected = ArrayUtils.concat(
+                QOIEncoder.qoiHeader(Helper.generateImage(opaque, QOISpecification.RGB, QOISpecification.sRGB)),
+                QOIEncoder.encodeData(ArrayUtils.imageToChannels(opaque)),
+                QOISpecification.QOI_EOF);
+        return Arrays.equals(expected, detected)
+                && kept[12] == QOISpecification.RGBA
+                && Arrays.equals(QOIEncoder.qoiFile(image), ArrayUtils.concat(
+                        QOIEncoder.qoiHeader(image), QOIEncoder.encodeData(ArrayUtils.imageToChannels(opaque)), QOISpecification.QOI_EOF));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testNearLossless(){
+        int[][] pixels = {{0xFF000000, 0xFF010200, 0xFF000000, 0xFF00FF00}, {0xFFEEECEE, 0xFF000000, 0xFF646464, 0x5A5A5A5A}};
+        Helper.Image image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] header = {'q', 'o', 'i', 'f', 0, 0, 0, 4, 0, 0, 0, 2, 4, 0};
+        // the second pixel joins the run of black pixels, whose pixel is stored in the index like the decoder does
+        byte[] encoding = {-62, 102, -115, -103, 53, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] expected = ArrayUtils.concat(header, encoding, QOISpecification.QOI_EOF);
+        byte[] exact = QOIEncoder.qoiFile(image, new int[]{0, 0, 0, 0});
+
+        // the first pixel is a run of the implicit opaque black, which the decoder stores in slot 53,
+        // the slot of the almost transparent second pixel
+        int[] tolerance = {7, 8, 2, 8};
+        Helper.Image transparent = Helper.generateImage(new int[][]{{0xFF000000, 0x07000800}}, QOISpecification.RGBA, QOISpecification.sRGB);
+        if (!withinTolerance(transparent, QOIEncoder.qoiFile(transparent, tolerance), tolerance))
+            return false;
+        // dark pixels of small alpha, close to each other and to the black runs
+        var random = new Random(39);
+        for (int n = 0; n < 500; n++) {
+            int[][] noise = new int[1 + random.nextInt(8)][1 + random.nextInt(8)];
+            for (int[] row : noise) {
+                for (int x = 0; x < row.length; x++) {
+                    row[x] = random.nextInt(3) == 0 ? 0xFF000000 : random.nextInt(1 << 16) * 0x10001 & 0x0F0F0F0F;
+                }
+            }
+            int[] noiseTolerance = {random.nextInt(9), random.nextInt(9), random.nextInt(9), random.nextInt(9)};
+            Helper.Image noisy = Helper.generateImage(noise, QOISpecification.RGBA, QOISpecification.sRGB);
+            if (!withinTolerance(noisy, QOIEncoder.qoiFile(noisy, noiseTolerance), noiseTolerance))
+                return false;
+        }
+        return Arrays.equals(expected, QOIEncoder.qoiFile(image, new int[]{2, 2, 2, 0}))
+                && QOIDecoder.decodeQoiFile(exact).equals(image)
+                && Arrays.equals(exact, QOIEncoder.qoiFile(image));
+    }
+
+    /**
+     * @return (boolean) - true if every channel of the decoded file is within the tolerance of the image
+     */
+    private static boolean withinTolerance(Helper.Image image, byte[] file, int[] tolerance){
+        int[][] decoded = FlatImage.decode(new QOIStreamDecoder(file)).toImage().data();
+        int[] shifts = new int[4];
+        shifts[QOISpecification.r] = 16;
+        shifts[QOISpecification.g] = 8;
+        shifts[QOISpecification.b] = 0;
+        shifts[QOISpecification.a] = 24;
+        for (int y = 0; y < decoded.length; y++) {
+            for (int x = 0; x < decoded[y].length; x++) {
+                for (int c = 0; c < 4; c++) {
+                    int error = (image.data()[y][x] >>> shifts[c] & 0xFF) - (decoded[y][x] >>> shifts[c] & 0xFF);
+                    if (Math.abs(error) > tolerance[c])
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testKernels(){
+        int[][] gray = {{0xFF000000, 0xFF010101, 0xFF010101, 0xFF202020}, {0xFFEEEEEE, 0xFF000000, 0xFF646464, 0xFF656565}};
+        int[][] flat = new int[3][70];
+        for (int[] row : flat) {
+            Arrays.fill(row, 0xFF00FF00);
+        }
+        flat[1][5] = 0x5A5A5A5A;
+        boolean same = true;
+        for (int[][] data : new int[][][]{gray, flat}) {
+            byte[] expected = QOIEncoder.qoiFile(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB));
+            for (var kernel : QOIStreamEncoder.Kernel.values()) {
+                var output = new ByteArrayOutputStream();
+                var encoder = QOIEncoder.isOpaque(data)
+                        ? QOIStreamEncoder.opaque(output, data[0].length, data.length, QOISpecification.RGBA, QOISpecification.sRGB)
+                        : new QOIStreamEncoder(output, data[0].length, data.length, QOISpecification.RGBA, QOISpecification.sRGB);
+                encoder.kernel(kernel);
+                for (int[] row : data) {
+                    encoder.pushRow(row);
+                }
+                encoder.finish();
+                same &= Arrays.equals(expected, output.toByteArray());
+            }
+        }
+        return same
+                && QOIEncoder.classify(4, 2, true, y -> gray[y]) == QOIStreamEncoder.Kernel.GRAYSCALE
+                && QOIEncoder.classify(70, 3, false, y -> flat[y]) == QOIStreamEncoder.Kernel.FLAT;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEstimator(){
+        Helper.Image image = sampleImage();
+        // too small to be sampled, the estimate is exact
+        QOIEstimator.Estimate estimate = QOIEstimator.estimate(image);
+
+        // tiles of gradients, noise and flat color : the sampled bands differ
+        int[][] tiles = new int[512][256];
+        var random = new Random(107);
+        for (int y = 0; y < tiles.length; y++) {
+            for (int x = 0; x < tiles[y].length; x++) {
+                tiles[y][x] = switch ((y / 64 + x / 64) % 3) {
+                    case 0 -> 0xFF000000 | x << 16 | (y & 0xFF) << 8 | (x + y & 0xFF);
+                    case 1 -> 0xFF000000 | random.nextInt(1 << 24);
+                    default -> 0xFF336699;
+                };
+            }
+        }
+        Helper.Image large = Helper.generateImage(tiles, QOISpecification.RGB, QOISpecification.sRGB);
+        QOIEstimator.Estimate sampled = QOIEstimator.estimate(large);
+        int size = QOIEncoder.qoiFile(large).length;
+
+        return estimate.bytes() == QOIEncoder.qoiFile(image).length
+                && estimate.margin() == 0
+                && estimate.opMix().get(QOIEstimator.Op.LUMA) == 2d / 6
+                && sampled.sampledPixels() < sampled.pixels() && sampled.margin() > 0
+                && sampled.low() <= size && size <= sampled.high();
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testFingerprint(){
+        Helper.Image image = sampleImage();
+        Helper.Image other = Helper.generateImage(samplePixels(), QOISpecification.RGBA, QOISpecification.ALL);
+        int[][] edited = samplePixels();
+        edited[1][2] = 0xFF646465;
+        QOIFingerprint fingerprint = QOIFingerprint.of(image, 0);
+        return fingerprint.equals(QOIFingerprint.of(FlatImage.of(image), 0))
+                && fingerprint.equals(QOIFingerprint.parse(fingerprint.toString()))
+                && !fingerprint.equals(QOIFingerprint.of(image, 1))
+                && !fingerprint.equals(QOIFingerprint.of(other, 0))
+                && !fingerprint.equals(QOIFingerprint.of(Helper.generateImage(edited, QOISpecification.RGBA, QOISpecification.sRGB), 0))
+                && !fingerprint.equals(QOIFingerprint.of(FlatImage.of(image).crop(0, 0, 4, 1), 0));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testIncremental(){
+        int[][] pixels = gradientPixels(4, 12);
+        Helper.Image image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        QOIIncremental.Encoded encoded = QOIIncremental.encode(image, 4);
+        boolean initial = Arrays.equals(encoded.file(), QOIEncoder.qoiFile(image)) && encoded.checkpoints().size() == 3;
+        // an edit in the middle of the second interval, the encoding restarts at row 4
+        pixels[5][1] = 0x80FFFFFF;
+        QOIIncremental.Encoded edited = QOIIncremental.reencode(encoded, image, 5, 5);
+        return initial
+                && Arrays.equals(edited.file(), QOIEncoder.qoiFile(image))
+                && edited.checkpoints().size() == 3;
+    }
+
     // ============================================================================================
     // ============================== QOIDecoder examples =========================================
     // ============================================================================================
@@ -300,4 +565,544 @@ public final class Main {
         return Arrays.deepEquals(expected, QOIDecoder.decodeData(encoding, 4, 2));
     }
 
-}
\ No newline at end of file
+    @SuppressWarnings("unused")
+    private static boolean testDecodeThumbnail(){
+        byte[] header   = {'q', 'o', 'i', 'f', 0, 0, 0, 4, 0, 0, 0, 2, 4, 0};
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] file = ArrayUtils.concat(header, encoding, QOISpecification.QOI_EOF);
+        Helper.Image full = QOIDecoder.decodeThumbnail(file, 1, true);
+        Helper.Image box = QOIDecoder.decodeThumbnail(file, 2, true);
+        Helper.Image point = QOIDecoder.decodeThumbnail(file, 2, false);
+        int[][] expectedBox = {{0xFF3C3B3C, 0xD6306F30}};
+        int[][] expectedPoint = {{0xFF000000, 0xFF000000}};
+        return full.equals(QOIDecoder.decodeQoiFile(file))
+                && Arrays.deepEquals(expectedBox, box.data())
+                && Arrays.deepEquals(expectedPoint, point.data());
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPyramid(){
+        // four flat quadrants : every level is exact, the last pixel is their average
+        int[] colors = {0xFF000000, 0xFF404040, 0xFF808080, 0xFFC0C0C0};
+        int[][] pixels = new int[8][8];
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                pixels[y][x] = colors[y / 4 * 2 + x / 4];
+            }
+        }
+        byte[] qoi = QOIEncoder.qoiFile(Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB));
+        List<byte[]> levels = QOIPyramid.build(new QOIStreamDecoder(qoi));
+        int[][] quadrants = {{colors[0], colors[1]}, {colors[2], colors[3]}};
+        return levels.size() == 4
+                && Arrays.equals(qoi, levels.get(0))
+                && FlatImage.decode(new QOIStreamDecoder(levels.get(1))).toImage().equals(QOIDecoder.decodeThumbnail(qoi, 2, true))
+                && Arrays.deepEquals(quadrants, FlatImage.decode(new QOIStreamDecoder(levels.get(2))).toImage().data())
+                && Arrays.deepEquals(new int[][]{{0xFF606060}}, FlatImage.decode(new QOIStreamDecoder(levels.get(3))).toImage().data());
+    }
+
+    // ============================================================================================
+    // ============================== Images and memory examples ==================================
+    // ============================================================================================
+
+    @SuppressWarnings("unused")
+    private static boolean testFlatImage(){
+        int[][] pixels = gradientPixels(6, 4);
+        Helper.Image image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        FlatImage flat = FlatImage.of(image);
+        // the crop starts inside a row and ends before its end : the rows are read through the stride
+        FlatImage crop = flat.crop(1, 1, 3, 2);
+        int[][] cropped = new int[2][3];
+        for (int y = 0; y < 2; y++) {
+            System.arraycopy(pixels[y + 1], 1, cropped[y], 0, 3);
+        }
+        Helper.Image expected = Helper.generateImage(cropped, QOISpecification.RGBA, QOISpecification.sRGB);
+        List<FlatImage> tiles = flat.tiles(4, 3);
+        return Arrays.equals(QOIEncoder.qoiFile(image), QOIEncoder.qoiFile(flat))
+                && Arrays.equals(QOIEncoder.qoiFile(expected), QOIEncoder.qoiFile(crop))
+                && crop.toImage().equals(expected)
+                && crop.pixels() == flat.pixels()
+                && crop.hashCode() == FlatImage.of(expected).hashCode()
+                // 2 columns and 2 rows of tiles, the last ones cut by the edges of the image
+                && tiles.size() == 4 && tiles.stream().mapToInt(tile -> tile.width() * tile.height()).sum() == 6 * 4
+                && FlatImage.decode(new QOIStreamDecoder(QOIEncoder.qoiFile(crop))).equals(crop);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testOffHeapImage(){
+        // more pixels than a batch of the codecs
+        int[][] pixels = randomPixels(new Random(37), 300, 100);
+        Helper.Image image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] qoi = QOIEncoder.qoiFile(image);
+        var output = new ByteArrayOutputStream();
+        try (var offHeap = OffHeapImage.of(image)) {
+            offHeap.encode(output);
+            var decoded = OffHeapImage.decode(new QOIStreamDecoder(qoi));
+            int[] row = new int[300];
+            decoded.get(99 * 300, row, 0, 300);
+            decoded.close();
+            boolean closed;
+            try {
+                decoded.get(0);
+                closed = false;
+            } catch (RuntimeException e){
+                closed = decoded.isClosed();
+            }
+            return Arrays.equals(qoi, output.toByteArray())
+                    && Arrays.equals(pixels[99], row)
+                    && offHeap.get(3, 0) == pixels[0][3]
+                    && closed;
+        }
+    }
+
+    @SuppressWarnings({"unused", "try"})
+    private static boolean testMemoryBudget(){
+        var budget = new MemoryBudget(100);
+        try (var ignored = budget.reserve(60, 0)) {
+            if (budget.tryReserve(50).isPresent() || budget.available() != 40)
+                return false;
+            try {
+                budget.reserve(50, 10);
+                return false;
+            } catch (MemoryBudget.Exhausted e){
+                // the memory is not released in time
+            }
+        }
+        var second = budget.tryReserve(50);
+        if (second.isEmpty() || budget.tryReserve(101).isPresent())
+            return false;
+        second.get().close();
+        // a header announcing 2^32 pixels followed by a single chunk
+        byte[] forged = ArrayUtils.concat(new byte[]{'q', 'o', 'i', 'f', 0, 1, 0, 0, 0, 1, 0, 0, 4, 0, (byte) 0xFD}, QOISpecification.QOI_EOF);
+        try {
+            QOIDecoder.decodeQoiFile(forged);
+            return false;
+        } catch (RuntimeException e){
+            // rejected before any allocation
+        }
+        // an image whose largest file just fits in the budget is still encoded, once
+        Helper.Image noise = Helper.generateImage(randomPixels(new Random(46), 64, 64), QOISpecification.RGBA, QOISpecification.sRGB);
+        var exact = new MemoryBudget(QOIEncoder.qoiFileBytes(64, 64, 4));
+        if (!Arrays.equals(QOIEncoder.qoiFile(noise, false, exact), QOIEncoder.qoiFile(noise))
+                || exact.peak() != exact.capacity() || exact.reserved() != 0)
+            return false;
+        // the encoders reserve their working set on the global budget too
+        long encodes = MemoryBudget.global().reservations();
+        try {
+            Path png = Files.createTempFile("budget", ".png");
+            ImageIO.write(new BufferedImage(3, 2, BufferedImage.TYPE_3BYTE_BGR), "png", png.toFile());
+            QOITranscoder.pngToQoi(png.toString(), png.resolveSibling(png.getFileName() + ".qoi").toString());
+            QOIEncoder.qoiFile(Helper.generateImage(new int[][]{{0xFF123456}}, QOISpecification.RGB, QOISpecification.sRGB));
+            if (QOITranscoder.readImageBytes(png.toString()) != 3 * 2 * 3 || MemoryBudget.global().reservations() != encodes + 2)
+                return false;
+        } catch (IOException e){
+            return false;
+        }
+        return budget.reserved() == 0 && budget.peak() == 60
+                && budget.reservations() == 2 && budget.rejections() == 3 && budget.waits() == 1;
+    }
+
+    // ============================================================================================
+    // ============================== Containers and I/O examples =================================
+    // ============================================================================================
+
+    @SuppressWarnings("unused")
+    private static boolean testSequence(){
+        int[][][] frames = {
+                {{0xFF000000, 0xFF102030}, {0xFF405060, 0x7F000000}},
+                {{0xFF000000, 0xFF102031}, {0xFF405060, 0x7F000000}},
+                {{0xFF000000, 0xFF102031}, {0xFF405060, 0x7F000000}}
+        };
+        var output = new ByteArrayOutputStream();
+        try (var writer = new QOISequence.Writer(output, 2, 2, QOISpecification.RGBA, QOISpecification.sRGB, 2)) {
+            for (int[][] frame : frames) {
+                writer.addFrame(Helper.generateImage(frame, QOISpecification.RGBA, QOISpecification.sRGB));
+            }
+        }
+        var reader = new QOISequence.Reader(output.toByteArray());
+        return reader.frameCount() == 3
+                && reader.keyFrameBefore(1) == 0 && reader.keyFrameBefore(2) == 2
+                && Arrays.deepEquals(frames[1], reader.frame(1).data())
+                && Arrays.deepEquals(frames[0], reader.frame(0).data())
+                && Arrays.deepEquals(frames[2], reader.frame(2).data());
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDeflate(){
+        // random pixels barely compress : the data section spans several chunks, the last one shorter
+        Helper.Image image = Helper.generateImage(randomPixels(new Random(28), 16, 16), QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] qoi = QOIEncoder.qoiFile(image);
+        int dataSize = qoi.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length;
+        byte[] wrapped = QOIDeflate.encode(image, 300, 9);
+        int chunks = ArrayUtils.toInt(ArrayUtils.extract(wrapped, QOIDeflate.HEADER_SIZE - 4, 4));
+        // forged raw sizes of the first chunk : huge, negative, and not adding up to full chunks
+        for (int rawSize : new int[]{0x7FFFFFF0, -1, 3}) {
+            byte[] forged = wrapped.clone();
+            System.arraycopy(ArrayUtils.fromInt(rawSize), 0, forged, QOIDeflate.HEADER_SIZE + 4, 4);
+            try {
+                QOIDeflate.decode(forged);
+                return false;
+            } catch (RuntimeException e){
+                if (!e.getMessage().contains("chunk index entry 0"))
+                    return false;
+            }
+        }
+        return chunks > 2 && chunks == (dataSize + 299) / 300 && dataSize % 300 != 0
+                && QOIDeflate.decode(wrapped).equals(image)
+                && Arrays.equals(qoi, QOIDeflate.unwrap(wrapped))
+                && Arrays.equals(wrapped, QOIDeflate.wrap(qoi, 300, 9))
+                && Arrays.equals(QOIDeflate.encode(image), QOIDeflate.wrap(qoi))
+                && QOIDeflate.decode(QOIDeflate.encode(image)).equals(image);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testArchive(){
+        Helper.Image image = sampleImage();
+        Helper.Image small = Helper.generateImage(new int[][]{{0xFF123456}}, QOISpecification.RGB, QOISpecification.ALL);
+        try {
+            Path directory = Files.createTempDirectory("archive");
+            Path first = Files.write(directory.resolve("first.qoi"), QOIEncoder.qoiFile(image));
+            Path second = Files.write(directory.resolve("second.qoi"), QOIEncoder.qoiFile(small));
+            Path archive = directory.resolve("images.qoia");
+            QOIArchive.build(archive, Map.of("b", first, "a", second));
+            QOIArchive before = QOIArchive.open(archive);
+            QOIArchive.append(archive, Map.of("b", second, "c", first));
+            boolean refused;
+            try {
+                QOIArchive.append(archive, Map.of("d", directory.resolve("missing.qoi")));
+                refused = false;
+            } catch (RuntimeException e){
+                refused = true;
+            }
+            QOIArchive appended = QOIArchive.open(archive);
+            long reclaimed = QOIArchive.compact(archive);
+            QOIArchive opened = QOIArchive.open(archive);
+            // the archive opened before the append still reads its own index
+            return before.size() == 2 && before.decode(before.entry("b").orElseThrow()).equals(image)
+                    && refused && appended.size() == 3
+                    && opened.size() == 3
+                    && opened.entries().get(0).name().equals("a")
+                    // the header of every entry is kept in the index
+                    && opened.entry("b").orElseThrow().equals(new QOIArchive.Entry("b", opened.entry("b").orElseThrow().offset(),
+                            QOIEncoder.qoiFile(small).length, 1, 1, QOISpecification.RGB, QOISpecification.ALL))
+                    && opened.entry("c").orElseThrow().width() == 4 && opened.entry("c").orElseThrow().height() == 2
+                    && opened.entry("c").orElseThrow().channels() == QOISpecification.RGBA
+                    && opened.decode(opened.entry("b").orElseThrow()).equals(small)
+                    && opened.decode(opened.entry("c").orElseThrow()).equals(image)
+                    && opened.entry("d").isEmpty()
+                    // the replaced file and the previous index : 2 records, the names "a" and "b" and the trailer
+                    && reclaimed == QOIEncoder.qoiFile(image).length + 2 * 32 + 2 + 16;
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testIntegrity(){
+        // random pixels barely compress, the file spans many blocks of 8 bytes
+        int[][] pixels = randomPixels(new Random(50), 8, 4);
+        Helper.Image image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var output = new ByteArrayOutputStream();
+            var hashing = new QOIIntegrity.HashingOutputStream(output, 8);
+            var encoder = new QOIStreamEncoder(hashing, 8, 4, QOISpecification.RGBA, QOISpecification.sRGB);
+            for (int[] row : pixels) {
+                encoder.pushRow(row);
+            }
+            encoder.finish();
+            var checksums = hashing.writeTrailer();
+            byte[] content = output.toByteArray();
+            byte[] corrupted = content.clone();
+            corrupted[QOISpecification.HEADER_SIZE + 1] ^= 0x10;
+            boolean detected;
+            try {
+                QOIIntegrity.decode(corrupted);
+                detected = false;
+            } catch (RuntimeException e){
+                detected = e.getMessage().contains("block 1");
+            }
+
+            Path directory = Files.createTempDirectory("integrity");
+            Path trailer = directory.resolve("trailer.qoi");
+            Path sidecar = directory.resolve("sidecar.qoi");
+            QOIIntegrity.write(image, trailer, QOIIntegrity.Storage.TRAILER);
+            QOIIntegrity.write(image, sidecar, QOIIntegrity.Storage.SIDECAR);
+            // an opaque image keeps its 4 channels unless asked otherwise
+            Helper.Image opaque = Helper.generateImage(new int[][]{{0xFF123456, 0xFF000000}}, QOISpecification.RGBA, QOISpecification.sRGB);
+            Path rgba = directory.resolve("rgba.qoi");
+            Path rgb = directory.resolve("rgb.qoi");
+            QOIIntegrity.write(opaque, rgba, QOIIntegrity.Storage.TRAILER);
+            QOIIntegrity.write(opaque, rgb, QOIIntegrity.Storage.TRAILER, true);
+            return Arrays.equals(Arrays.copyOf(content, (int) checksums.length()), QOIEncoder.qoiFile(image))
+                    && checksums.blocks().length == (checksums.length() + 7) / 8
+                    && QOIIntegrity.decode(content).equals(image)
+                    && QOIIntegrity.verify(content) && !QOIIntegrity.verify(corrupted) && detected
+                    && QOIIntegrity.decode(trailer).equals(image) && QOIIntegrity.decode(sidecar).equals(image)
+                    && FlatImage.decode(new QOIStreamDecoder(new ByteArrayInputStream(Files.readAllBytes(trailer)))).toImage().equals(image)
+                    && QOIIntegrity.verify(trailer) && QOIIntegrity.verify(sidecar)
+                    && QOIIntegrity.decode(rgba).equals(opaque)
+                    && QOIIntegrity.decode(rgb).equals(Helper.generateImage(opaque.data(), QOISpecification.RGB, QOISpecification.sRGB));
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testRawReader(){
+        try {
+            Path directory = Files.createTempDirectory("raw");
+            Path ppm = directory.resolve("image.ppm");
+            var content = new ByteArrayOutputStream();
+            content.writeBytes("P6\n# comment\n2 1\n255\n".getBytes(StandardCharsets.US_ASCII));
+            content.writeBytes(new byte[]{10, 20, 30, (byte) 200, (byte) 210, (byte) 220});
+            Files.write(ppm, content.toByteArray());
+            QOIRawReader.toQoi(ppm.toString(), directory.resolve("ppm.qoi").toString());
+            Helper.Image expected = Helper.generateImage(new int[][]{{0xFF0A141E, 0xFFC8D2DC}}, QOISpecification.RGB, QOISpecification.sRGB);
+
+            // 4 bits samples rescaled with rounding : 7 * 255 / 15 = 119
+            Path small = directory.resolve("small.ppm");
+            content.reset();
+            content.writeBytes("P6 1 1 15\n".getBytes(StandardCharsets.US_ASCII));
+            content.writeBytes(new byte[]{15, 7, 0});
+            Files.write(small, content.toByteArray());
+            QOIRawReader.toQoi(small.toString(), directory.resolve("small.qoi").toString());
+
+            // 16 bits big endian samples, opaque alpha
+            Path pam = directory.resolve("image.pam");
+            content.reset();
+            content.writeBytes("P7\nWIDTH 1\nHEIGHT 2\nDEPTH 4\nMAXVAL 1000\nTUPLTYPE RGB_ALPHA\nENDHDR\n".getBytes(StandardCharsets.US_ASCII));
+            content.writeBytes(new byte[]{3, (byte) 0xE8, 1, (byte) 0xF4, 0, 0, 3, (byte) 0xE8,
+                                          0, 0, 0, 2, 0, 4, 3, (byte) 0xE8});
+            Files.write(pam, content.toByteArray());
+            QOIRawReader.toQoi(pam.toString(), directory.resolve("rgba.qoi").toString(), false);
+            QOIRawReader.toQoi(pam.toString(), directory.resolve("rgb.qoi").toString(), true);
+            int[][] pamPixels = {{0xFFFF8000}, {0xFF000101}};
+
+            Path raw = directory.resolve("image.raw");
+            Files.write(raw, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            QOIRawReader.rawToQoi(raw.toString(), directory.resolve("raw.qoi").toString(), 2, 1, QOISpecification.RGBA);
+
+            Path truncated = directory.resolve("truncated.ppm");
+            Files.write(truncated, "P6 4 4 255\n\0\0\0".getBytes(StandardCharsets.US_ASCII));
+            boolean refused;
+            try {
+                QOIRawReader.toQoi(truncated.toString(), directory.resolve("truncated.qoi").toString());
+                refused = false;
+            } catch (RuntimeException e){
+                refused = e.getMessage().contains("truncated");
+            }
+
+            var header = QOIRawReader.readHeader(pam);
+            return QOIDecoder.decodeQoiFile(Files.readAllBytes(directory.resolve("ppm.qoi"))).equals(expected)
+                    && QOIDecoder.decodeQoiFile(Files.readAllBytes(directory.resolve("small.qoi"))).equals(
+                            Helper.generateImage(new int[][]{{0xFFFF7700}}, QOISpecification.RGB, QOISpecification.sRGB))
+                    && header.width() == 1 && header.height() == 2 && header.depth() == 4 && header.maxval() == 1000
+                    && QOIDecoder.decodeQoiFile(Files.readAllBytes(directory.resolve("rgba.qoi"))).equals(
+                            Helper.generateImage(pamPixels, QOISpecification.RGBA, QOISpecification.sRGB))
+                    && QOIDecoder.decodeQoiFile(Files.readAllBytes(directory.resolve("rgb.qoi"))).equals(
+                            Helper.generateImage(pamPixels, QOISpecification.RGB, QOISpecification.sRGB))
+                    && QOIDecoder.decodeQoiFile(Files.readAllBytes(directory.resolve("raw.qoi"))).equals(
+                            Helper.generateImage(new int[][]{{0x04010203, 0x08050607}}, QOISpecification.RGBA, QOISpecification.sRGB))
+                    && refused && !Files.exists(directory.resolve("truncated.qoi"));
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testImageIO(){
+        int[][] pixels = gradientPixels(6, 3);
+        // a translucent pixel kept by the subsampling
+        pixels[2][4] = 0x5A5A5A5A;
+        byte[] qoi = QOIEncoder.qoiFile(Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB));
+        QOIImageIO.register();
+        try (var input = ImageIO.createImageInputStream(new ByteArrayInputStream(qoi))) {
+            var reader = ImageIO.getImageReaders(input).next();
+            reader.setInput(input);
+            var param = reader.getDefaultReadParam();
+            // the columns 1 and 4 of the rows 0 and 2
+            param.setSourceSubsampling(3, 2, 1, 0);
+            boolean header = reader.getWidth(0) == 6 && reader.getHeight(0) == 3;
+            var subsampled = reader.read(0, param);
+            boolean sampled = subsampled.getWidth() == 2 && subsampled.getHeight() == 2;
+            for (int y = 0; y < 2 && sampled; y++) {
+                for (int x = 0; x < 2; x++) {
+                    sampled &= subsampled.getRGB(x, y) == pixels[2 * y][1 + 3 * x];
+                }
+            }
+            var output = new ByteArrayOutputStream();
+            ImageIO.write(ImageIO.read(new ByteArrayInputStream(qoi)), "qoi", output);
+            return header && sampled && Arrays.equals(qoi, output.toByteArray());
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPngWriter(){
+        // gradients with a varying alpha, every filter has something to predict
+        int[][] pixels = gradientPixels(16, 6);
+        for (int[] row : pixels) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = row[x] & 0x00FFFFFF | 255 - x * 8 << 24;
+            }
+        }
+        Helper.Image image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            for (var filter : PNGWriter.Filter.values()) {
+                // one row per block, every block but the first one is compressed with a dictionary
+                var writer = new PNGWriter(9, filter, 1, ForkJoinPool.commonPool());
+                var output = new ByteArrayOutputStream();
+                writer.write(new QOIStreamDecoder(QOIEncoder.qoiFile(image)), output);
+                var png = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+                for (int y = 0; y < pixels.length; y++) {
+                    for (int x = 0; x < pixels[y].length; x++) {
+                        if (png.getRGB(x, y) != pixels[y][x])
+                            return false;
+                    }
+                }
+            }
+        } catch (IOException e){
+            return false;
+        }
+        // Adler-32 of "a", "b" and "ab"
+        return PNGWriter.combine(0x00620062, 0x00630063, 1) == 0x012600C4;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDedupCache(){
+        Helper.Image first = Helper.generateImage(new int[][]{{0x10203040}}, QOISpecification.RGBA, QOISpecification.sRGB);
+        Helper.Image second = Helper.generateImage(new int[][]{{0x50607080}}, QOISpecification.RGBA, QOISpecification.sRGB);
+        Helper.Image third = Helper.generateImage(new int[][]{{0x90A0B0C0}}, QOISpecification.RGBA, QOISpecification.sRGB);
+        // the files of the three images have the same size, the cache holds two of them
+        int size = QOIEncoder.qoiFile(first).length;
+        try {
+            Path directory = Files.createTempDirectory("cache");
+            var cache = new QOIDedupCache(directory, 2L * size);
+            boolean encoded = Arrays.equals(cache.qoiFile(first), QOIEncoder.qoiFile(first));
+            cache.qoiFile(second);
+            boolean hit = Arrays.equals(cache.qoiFile(first), QOIEncoder.qoiFile(first));
+            // the second image is the least recently used
+            cache.qoiFile(third);
+            boolean evicted = cache.path(QOIFingerprint.of(second, 0)).isEmpty()
+                    && cache.path(QOIFingerprint.of(first, 0)).isPresent()
+                    && cache.path(QOIFingerprint.of(third, 0)).isPresent();
+            boolean counted = cache.hits() == 1 && cache.misses() == 3 && cache.evictions() == 1
+                    && cache.size() == 2 && cache.bytes() == 2L * size;
+
+            var reopened = new QOIDedupCache(directory, 2L * size);
+            boolean persisted = reopened.size() == 2
+                    && Arrays.equals(reopened.qoiFile(third), QOIEncoder.qoiFile(third))
+                    && reopened.hits() == 1 && reopened.misses() == 0;
+            return encoded && hit && evicted && counted && persisted;
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testRowPublisher(){
+        int[][] pixels = {{0xFF000000, 0xFF00FF00}, {0xFFEEECEE, 0x5A5A5A5A}, {0xFF646464, 0xFF646464}, {0xFF000000, 0xFF010203}, {0x00000000, 0xFF000000}};
+        byte[] content = QOIEncoder.qoiFile(Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB));
+        // the drain runs on the requesting thread, the events are recorded in order
+        Executor direct = Runnable::run;
+        var events = new ArrayList<String>();
+        var subscription = new AtomicReference<Flow.Subscription>();
+        var subscriber = new Flow.Subscriber<QOIAsync.RowBatch>() {
+            public void onSubscribe(Flow.Subscription s){ subscription.set(s); }
+            public void onNext(QOIAsync.RowBatch batch){
+                events.add(batch.firstRow() + ":" + batch.rows().length + ":" + Arrays.equals(batch.rows()[0], pixels[batch.firstRow()]));
+            }
+            public void onError(Throwable e){ events.add(e.getClass().getSimpleName()); }
+            public void onComplete(){ events.add("complete"); }
+        };
+
+        QOIAsync.rows(content, 2, direct).subscribe(subscriber);
+        boolean nothingBeforeRequest = events.isEmpty();
+        subscription.get().request(1);
+        boolean oneBatch = events.equals(List.of("0:2:true"));
+        subscription.get().request(Long.MAX_VALUE);
+        subscription.get().request(Long.MAX_VALUE);
+        boolean completed = events.equals(List.of("0:2:true", "2:2:true", "4:1:true", "complete"));
+
+        events.clear();
+        QOIAsync.rows(content, 2, direct).subscribe(subscriber);
+        subscription.get().request(1);
+        subscription.get().cancel();
+        subscription.get().request(5);
+        boolean cancelled = events.equals(List.of("0:2:true"));
+
+        events.clear();
+        QOIAsync.rows(content, 2, direct).subscribe(subscriber);
+        subscription.get().request(0);
+        subscription.get().request(1);
+        boolean invalid = events.equals(List.of("IllegalArgumentException"));
+
+        return nothingBeforeRequest && oneBatch && completed && cancelled && invalid;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testServer(){
+        int[][] pixels = samplePixels();
+        Helper.Image image = sampleImage();
+        byte[] qoi = QOIEncoder.qoiFile(image);
+        var server = new QOIServer(new InetSocketAddress("localhost", 0), QOIServer.Config.defaults(), new MemoryBudget(1 << 26));
+        server.start();
+        try {
+            var client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + server.address().getPort();
+            var png = new ByteArrayOutputStream();
+            var buffered = new BufferedImage(4, 2, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < 2; y++) {
+                buffered.setRGB(0, y, 4, 1, pixels[y], 0, 4);
+            }
+            ImageIO.write(buffered, "png", png);
+
+            var encoded = post(client, base + "/encode", png.toByteArray());
+            boolean encode = encoded.statusCode() == 200 && Arrays.equals(encoded.body(), qoi);
+
+            var decoded = post(client, base + "/decode", qoi);
+            var decodedImage = ImageIO.read(new ByteArrayInputStream(decoded.body()));
+            boolean decode = decoded.statusCode() == 200
+                    && Arrays.equals(decodedImage.getRGB(0, 1, 4, 1, null, 0, 4), pixels[1]);
+
+            var probed = post(client, base + "/probe", qoi);
+            boolean probe = probed.statusCode() == 200
+                    && new String(probed.body()).trim().equals("{\"width\":4,\"height\":2,\"channels\":4,\"colorspace\":0}");
+
+            var thumbnail = post(client, base + "/thumbnail?size=2&format=qoi", qoi);
+            var thumbnailDecoder = new QOIStreamDecoder(thumbnail.body());
+            boolean thumb = thumbnail.statusCode() == 200 && thumbnailDecoder.width() == 2 && thumbnailDecoder.height() == 1;
+
+            // a png is not a "Quite Ok Image", rejected before any memory is reserved
+            boolean notQoi = post(client, base + "/decode", png.toByteArray()).statusCode() == 400
+                    && post(client, base + "/thumbnail", png.toByteArray()).statusCode() == 400;
+            boolean truncated = post(client, base + "/decode", Arrays.copyOf(qoi, qoi.length - 10)).statusCode() == 400;
+            // ImageIO fails on the truncated image before the response starts
+            var truncatedPng = post(client, base + "/encode", Arrays.copyOf(png.toByteArray(), png.size() / 2));
+            truncated &= truncatedPng.statusCode() == 400 && truncatedPng.body().length > 0;
+            boolean badParameter = post(client, base + "/thumbnail?size=-1", qoi).statusCode() == 400;
+            boolean wrongMethod = client.send(HttpRequest.newBuilder(URI.create(base + "/probe")).build(),
+                    HttpResponse.BodyHandlers.discarding()).statusCode() == 405;
+
+            String metrics = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            boolean metric = metrics.contains("/decode requests 3") && metrics.contains("/decode errors 2")
+                    && metrics.contains("memory_rejections 0") && metrics.contains("memory_reserved_bytes 0");
+
+            return encode && decode && probe && thumb && notQoi && truncated && badParameter && wrongMethod && metric;
+        } catch (IOException e){
+            return false;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            server.close();
+        }
+    }
+
+    private static HttpResponse<byte[]> post(HttpClient client, String uri, byte[] body) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create(uri)).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+}
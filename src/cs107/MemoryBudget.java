@@ -0,0 +1,221 @@
+package cs107;
+
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bound on the memory used at the same time by the codecs.
+ * <p>
+ * Before allocating its working set from the dimensions announced by a header, a codec reserves
+ * an estimate of its size and releases it once done. When the budget is exhausted, a reservation
+ * either waits in line for the memory to be released, fails fast, or lets the caller fall back
+ * to a mode that needs less memory. A single forged header can then only be rejected, instead of
+ * exhausting the memory of every request running in the same process.
+ * <p>
+ * The waiting reservations are served in arrival order, a large one is not overtaken forever by
+ * small ones.
+ */
+public final class MemoryBudget {
+
+    /**
+     * Default time a reservation waits for the memory to be released
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+    private static final MemoryBudget GLOBAL = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+
+    /**
+     * Thrown when a reservation cannot be granted
+     */
+    public static final class Exhausted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Exhausted(long bytes, long available, long capacity){
+            super(String.format("Cannot reserve %d bytes of memory, %d of %d available", bytes, available, capacity));
+        }
+    }
+
+    /**
+     * Memory reserved until closed
+     */
+    public final class Reservation implements AutoCloseable {
+
+        private final long bytes;
+        private boolean released = false;
+
+        private Reservation(long bytes){
+            this.bytes = bytes;
+        }
+
+        public long bytes(){
+            return bytes;
+        }
+
+        /**
+         * Release the memory, only the first call has an effect
+         */
+        @Override
+        public void close(){
+            synchronized (MemoryBudget.this) {
+                if (released)
+                    return;
+                released = true;
+                reserved -= bytes;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+    }
+
+    private final long capacity;
+    private long reserved = 0;
+    private long peak = 0;
+    // waiting reservations, the first one is served first
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+    private final LongAdder reservations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+
+    /**
+     * @param capacity (long) - Number of bytes that can be reserved at the same time
+     */
+    public MemoryBudget(long capacity){
+        assert capacity > 0;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return (MemoryBudget) - Budget shared by the whole process, half of the maximal heap
+     */
+    public static MemoryBudget global(){
+        return GLOBAL;
+    }
+
+    // ==================================================================================
+    // ================================== RESERVATIONS ==================================
+    // ==================================================================================
+
+    /**
+     * Reserve memory, waiting up to {@link #DEFAULT_TIMEOUT_MILLIS} for it to be released
+     * @see #reserve(long, long)
+     */
+    public Reservation reserve(long bytes){
+        return reserve(bytes, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Reserve memory, waiting in line for it to be released if needed
+     * @param bytes (long) - Number of bytes to reserve
+     * @param timeoutMillis (long) - Longest wait, 0 to fail fast
+     * @return (Reservation) - The reservation, to close once the memory is freed
+     * @throws Exhausted if the memory is not available in time, or never will be
+     */
+    public Reservation reserve(long bytes, long timeoutMillis){
+        assert bytes >= 0 && timeoutMillis >= 0;
+        synchronized (this) {
+            if (bytes > capacity)
+                throw reject(bytes);
+            if (queue.isEmpty() && bytes <= capacity - reserved)
+                return grant(bytes);
+            if (timeoutMillis == 0)
+                throw reject(bytes);
+
+            waits.increment();
+            var ticket = new Object();
+            queue.add(ticket);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (queue.peek() != ticket || bytes > capacity - reserved) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        throw reject(bytes);
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+                return grant(bytes);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw reject(bytes);
+            } finally {
+                queue.remove(ticket);
+                // the next one in line may fit now
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reserve memory only if it is available right away, for callers able to fall back
+     * to a mode needing less memory
+     * @param bytes (long) - Number of bytes to reserve
+     * @return (Optional) - The reservation, empty if the memory is not available
+     */
+    public Optional<Reservation> tryReserve(long bytes){
+        try {
+            return Optional.of(reserve(bytes, 0));
+        } catch (Exhausted e){
+            return Optional.empty();
+        }
+    }
+
+    // called with the lock held
+    private Reservation grant(long bytes){
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+        reservations.increment();
+        return new Reservation(bytes);
+    }
+
+    // called with the lock held
+    private Exhausted reject(long bytes){
+        rejections.increment();
+        return new Exhausted(bytes, capacity - reserved, capacity);
+    }
+
+    // ==================================================================================
+    // ==================================== ESTIMATES ===================================
+    // ==================================================================================
+
+    /**
+     * @return (long) - Heap size of the {@code int[height][width]} pixels of a {@link Helper.Image}
+     */
+    public static long imageBytes(long width, long height){
+        assert width >= 0 && height >= 0;
+        // 16 bytes of header for every array and a reference to every row
+        return height * (width * Integer.BYTES + 16 + 8) + 16;
+    }
+
+    // ==================================================================================
+    // ===================================== METRICS ====================================
+    // ==================================================================================
+
+    public long capacity(){
+        return capacity;
+    }
+
+    public synchronized long reserved(){
+        return reserved;
+    }
+
+    public synchronized long available(){
+        return capacity - reserved;
+    }
+
+    public synchronized long peak(){
+        return peak;
+    }
+
+    public long reservations(){
+        return reservations.sum();
+    }
+
+    public long rejections(){
+        return rejections.sum();
+    }
+
+    public long waits(){
+        return waits.sum();
+    }
+
+}
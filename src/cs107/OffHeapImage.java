@@ -0,0 +1,262 @@
+package cs107;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Image whose pixels are stored outside of the Java heap.
+ * <p>
+ * The ARGB pixels (the format of {@link Helper.Image#data()}) are laid out row after row in
+ * direct buffers of at most {@link #SEGMENT_PIXELS} pixels and are addressed with a {@code long}
+ * index, so the image can hold more than {@code 2^31} pixels and never adds to the work of the
+ * garbage collector. After {@link #close()}, the pixels can no longer be accessed and the memory is
+ * reclaimed with the buffers : it is never freed while a racing access may still read it.
+ */
+public final class OffHeapImage implements AutoCloseable {
+
+    /**
+     * Number of pixels of every segment but the last one (1 GiB)
+     */
+    public static final int SEGMENT_PIXELS = 1 << 28;
+
+    private static final int SEGMENT_SHIFT = Integer.numberOfTrailingZeros(SEGMENT_PIXELS);
+    private static final int SEGMENT_MASK = SEGMENT_PIXELS - 1;
+
+    /**
+     * Pixels copied at once between the segments and the codecs
+     */
+    private static final int BATCH_PIXELS = 1 << 14;
+
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+    private final long size;
+
+    // null once closed
+    private volatile IntBuffer[] segments;
+
+    /**
+     * Allocate an image, all its pixels are 0
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     */
+    public OffHeapImage(int width, int height, byte channels, byte colorSpace){
+        assert width > 0 && height > 0;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+        this.size = (long) width * height;
+        int count = (int) ((size + SEGMENT_PIXELS - 1) >>> SEGMENT_SHIFT);
+        var segments = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long pixels = Math.min(SEGMENT_PIXELS, size - ((long) i << SEGMENT_SHIFT));
+            segments[i] = ByteBuffer.allocateDirect((int) pixels * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        this.segments = segments;
+    }
+
+    /**
+     * Copy an image stored on the heap
+     * @param image (Helper.Image) - Image to copy
+     * @return (OffHeapImage) - The copy
+     */
+    public static OffHeapImage of(Helper.Image image){
+        assert image != null;
+        int[][] data = image.data();
+        var copy = new OffHeapImage(data[0].length, data.length, image.channels(), image.color_space());
+        for (int y = 0; y < data.length; y++) {
+            copy.set((long) y * copy.width, data[y], 0, copy.width);
+        }
+        return copy;
+    }
+
+    // ==================================================================================
+    // ================================ IMAGE INFORMATION ===============================
+    // ==================================================================================
+
+    public int width(){
+        return width;
+    }
+
+    public int height(){
+        return height;
+    }
+
+    public byte channels(){
+        return channels;
+    }
+
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (long) - Number of pixels of the image
+     */
+    public long size(){
+        return size;
+    }
+
+    // ==================================================================================
+    // ================================= PIXEL ACCESS ===================================
+    // ==================================================================================
+
+    /**
+     * @param index (long) - Position of the pixel, row after row
+     * @return (int) - ARGB value of the pixel
+     */
+    public int get(long index){
+        assert index >= 0 && index < size;
+        return segments()[(int) (index >>> SEGMENT_SHIFT)].get((int) index & SEGMENT_MASK);
+    }
+
+    public int get(int x, int y){
+        assert x >= 0 && x < width;
+        return get((long) y * width + x);
+    }
+
+    /**
+     * @param index (long) - Position of the pixel, row after row
+     * @param pixel (int) - New ARGB value of the pixel
+     */
+    public void set(long index, int pixel){
+        assert index >= 0 && index < size;
+        segments()[(int) (index >>> SEGMENT_SHIFT)].put((int) index & SEGMENT_MASK, pixel);
+    }
+
+    public void set(int x, int y, int pixel){
+        assert x >= 0 && x < width;
+        set((long) y * width + x, pixel);
+    }
+
+    /**
+     * Copy consecutive pixels of the image to an array
+     * @param index (long) - Position of the first pixel
+     * @param pixels (int[]) - Destination
+     * @param offset (int) - Position of the first pixel in the destination
+     * @param length (int) - Number of pixels
+     */
+    public void get(long index, int[] pixels, int offset, int length){
+        assert pixels != null;
+        assert offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        assert index >= 0 && index + length <= size;
+        var segments = segments();
+        while (length > 0) {
+            int position = (int) index & SEGMENT_MASK;
+            int count = Math.min(length, SEGMENT_PIXELS - position);
+            segments[(int) (index >>> SEGMENT_SHIFT)].get(position, pixels, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copy an array to consecutive pixels of the image
+     * @param index (long) - Position of the first pixel
+     * @param pixels (int[]) - Source
+     * @param offset (int) - Position of the first pixel in the source
+     * @param length (int) - Number of pixels
+     */
+    public void set(long index, int[] pixels, int offset, int length){
+        assert pixels != null;
+        assert offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        assert index >= 0 && index + length <= size;
+        var segments = segments();
+        while (length > 0) {
+            int position = (int) index & SEGMENT_MASK;
+            int count = Math.min(length, SEGMENT_PIXELS - position);
+            segments[(int) (index >>> SEGMENT_SHIFT)].put(position, pixels, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // ==================================================================================
+    // ================================= CODEC METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * Decode all the remaining pixels of a decoder into a new image
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel
+     * @return (OffHeapImage) - The decoded image
+     */
+    public static OffHeapImage decode(QOIStreamDecoder decoder){
+        assert decoder != null;
+        var image = new OffHeapImage(decoder.width(), decoder.height(), decoder.channels(), decoder.colorSpace());
+        try {
+            int[] batch = new int[(int) Math.min(BATCH_PIXELS, image.size)];
+            for (long index = 0; index < image.size; index += batch.length) {
+                int count = (int) Math.min(batch.length, image.size - index);
+                decoder.next(batch, 0, count);
+                image.set(index, batch, 0, count);
+            }
+            decoder.checkEnd();
+        } catch (RuntimeException | Error e){
+            image.close();
+            throw e;
+        }
+        return image;
+    }
+
+    /**
+     * Encode the image as a complete "Quite Ok Image" file
+     * @param output (OutputStream) - Destination of the file, flushed but not closed
+     */
+    public void encode(OutputStream output){
+        encode(new QOIStreamEncoder(output, width, height, channels, colorSpace));
+    }
+
+    /**
+     * Give all the pixels of the image to an encoder and finish it
+     * @param encoder (QOIStreamEncoder) - Encoder of an image of the same dimensions, with no pixel given yet
+     */
+    public void encode(QOIStreamEncoder encoder){
+        assert encoder != null;
+        assert encoder.width() == width && encoder.height() == height && encoder.remaining() == size;
+        int[] batch = new int[(int) Math.min(BATCH_PIXELS, size)];
+        for (long index = 0; index < size; index += batch.length) {
+            int count = (int) Math.min(batch.length, size - index);
+            get(index, batch, 0, count);
+            encoder.push(batch, 0, count);
+        }
+        encoder.finish();
+    }
+
+    // ==================================================================================
+    // ================================= MEMORY RELEASE =================================
+    // ==================================================================================
+
+    /**
+     * @return (boolean) - true if the image has been closed
+     */
+    public boolean isClosed(){
+        return segments == null;
+    }
+
+    /**
+     * Release the memory of the image. The pixels can no longer be accessed, the memory is freed
+     * by the garbage collector once no access still running holds the buffers
+     */
+    @Override
+    public void close(){
+        segments = null;
+    }
+
+    private IntBuffer[] segments(){
+        var segments = this.segments;
+        if (segments == null)
+            Helper.fail("The off-heap image has been closed");
+        return segments;
+    }
+
+}
@@ -0,0 +1,363 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * "PNG" writer compressing the image data on several threads.
+ * <p>
+ * The rows are filtered in order on the calling thread and cut into blocks. Every block is
+ * deflated on its own by the executor, with the end of the previous block as preset dictionary
+ * so the compression barely suffers from the cut, and ends on a byte boundary. The blocks are
+ * concatenated into a single zlib stream whose checksum is combined from the checksums of the
+ * blocks. Only a bounded number of blocks are in flight, the image is never fully in memory.
+ */
+public final class PNGWriter {
+
+    /**
+     * Filter applied to every row before the compression
+     */
+    public enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+    /**
+     * Default compression level, the one of the "PNG" writer of ImageIO
+     */
+    public static final int DEFAULT_LEVEL = 4;
+
+    /**
+     * Default filter : on one core as fast as the "PNG" writer of ImageIO, with a smaller output.
+     * {@link Filter#ADAPTIVE} is about 6% smaller still, but about 60% slower
+     */
+    public static final Filter DEFAULT_FILTER = Filter.SUB;
+
+    /**
+     * Default number of bytes of filtered data per block
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 17;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    // longest distance of a deflate back reference
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    private final int level;
+    private final Filter filter;
+    private final int blockSize;
+    private final Executor executor;
+    private final int maxInFlight;
+
+    /**
+     * @param level (int) - Deflate compression level, from 0 to 9
+     * @param filter (Filter) - Filter of the rows, {@link Filter#ADAPTIVE} picks the best one for every row
+     *               and compresses for the smallest output
+     * @param blockSize (int) - Approximate size of the blocks compressed in parallel
+     * @param executor (Executor) - Executor compressing the blocks
+     */
+    public PNGWriter(int level, Filter filter, int blockSize, Executor executor){
+        assert level >= 0 && level <= 9;
+        assert filter != null && blockSize > 0 && executor != null;
+        this.level = level;
+        this.filter = filter;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return (PNGWriter) - Writer with the default compression level and filter, on the common pool
+     */
+    public static PNGWriter defaults(){
+        return new PNGWriter(DEFAULT_LEVEL, DEFAULT_FILTER, DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    // ==================================================================================
+    // ==================================== WRITE API ===================================
+    // ==================================================================================
+
+    /**
+     * Write an image. The pixels of a 3 channels image are written without alpha
+     * @param image (Helper.Image) - Image to write
+     * @param output (OutputStream) - Destination of the "PNG" file, flushed but not closed
+     */
+    public void write(Helper.Image image, OutputStream output) throws IOException {
+        assert image != null;
+        int[][] data = image.data();
+        int[] y = {0};
+        write(data[0].length, data.length, image.channels() == QOISpecification.RGBA, row -> System.arraycopy(data[y[0]++], 0, row, 0, row.length), output);
+    }
+
+    /**
+     * Write the image of a decoder, decoded while it is compressed
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel
+     * @param output (OutputStream) - Destination of the "PNG" file, flushed but not closed
+     */
+    public void write(QOIStreamDecoder decoder, OutputStream output) throws IOException {
+        assert decoder != null;
+        write(decoder.width(), decoder.height(), decoder.channels() == QOISpecification.RGBA, decoder::nextRow, output);
+        decoder.checkEnd();
+    }
+
+    // ==================================================================================
+    // ================================== FILE LAYOUT ===================================
+    // ==================================================================================
+
+    private interface RowSource {
+        void next(int[] row);
+    }
+
+    private record Block(byte[] data, int length, long adler, int rawLength){}
+
+    private void write(int width, int height, boolean alpha, RowSource rows, OutputStream output) throws IOException {
+        assert output != null;
+        int bpp = alpha ? 4 : 3;
+        int rowBytes = Math.multiplyExact(width, bpp);
+
+        output.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;                       // bits per sample
+        header[9] = (byte) (alpha ? 6 : 2);  // truecolor, with or without alpha
+        writeChunk(output, "IHDR", header, 0, header.length);
+
+        var pending = new ArrayDeque<CompletableFuture<Block>>();
+        long adler = 1;
+        boolean first = true;
+
+        int[] pixels = new int[width];
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        var scratch = new byte[Filter.values().length - 1][rowBytes + 1];
+        int rowsPerBlock = Math.max(1, blockSize / (rowBytes + 1));
+        byte[] dictionary = null;
+
+        for (int top = 0; top < height; top += rowsPerBlock) {
+            int count = Math.min(rowsPerBlock, height - top);
+            byte[] block = new byte[count * (rowBytes + 1)];
+            for (int i = 0; i < count; i++) {
+                rows.next(pixels);
+                toBytes(pixels, current, alpha);
+                filterRow(current, previous, bpp, block, i * (rowBytes + 1), scratch);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            byte[] preset = dictionary;
+            boolean last = top + count >= height;
+            pending.add(CompletableFuture.supplyAsync(() -> compress(block, preset, last), executor));
+            dictionary = block;
+
+            while (pending.size() > maxInFlight || (last && !pending.isEmpty())) {
+                Block compressed = pending.remove().join();
+                adler = combine(adler, compressed.adler(), compressed.rawLength());
+                writeBlock(output, compressed, first, pending.isEmpty() && last, adler);
+                first = false;
+            }
+        }
+        writeChunk(output, "IEND", new byte[0], 0, 0);
+        output.flush();
+    }
+
+    private void writeBlock(OutputStream output, Block block, boolean first, boolean last, long adler) throws IOException {
+        byte[] data = block.data();
+        int length = block.length();
+        if (first || last) {
+            // zlib header in front of the first block, checksum after the last one
+            byte[] framed = new byte[length + (first ? 2 : 0) + (last ? 4 : 0)];
+            if (first) {
+                framed[0] = 0x78;
+                framed[1] = (byte) (level < 2 ? 0x01 : level < 6 ? 0x5E : level == 6 ? 0x9C : 0xDA);
+            }
+            System.arraycopy(data, 0, framed, first ? 2 : 0, length);
+            if (last) {
+                putInt(framed, framed.length - 4, (int) adler);
+            }
+            data = framed;
+            length = framed.length;
+        }
+        writeChunk(output, "IDAT", data, 0, length);
+    }
+
+    private static void writeChunk(OutputStream output, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] prefix = new byte[8];
+        putInt(prefix, 0, length);
+        for (int i = 0; i < 4; i++) {
+            prefix[4 + i] = (byte) type.charAt(i);
+        }
+        var crc = new CRC32();
+        crc.update(prefix, 4, 4);
+        crc.update(data, offset, length);
+        byte[] suffix = new byte[4];
+        putInt(suffix, 0, (int) crc.getValue());
+        output.write(prefix);
+        output.write(data, offset, length);
+        output.write(suffix);
+    }
+
+    // ==================================================================================
+    // =================================== COMPRESSION ==================================
+    // ==================================================================================
+
+    /**
+     * Deflate a block into raw deflate data ending on a byte boundary, with a final block for the last one
+     */
+    private Block compress(byte[] block, byte[] dictionary, boolean last){
+        var deflater = new Deflater(level, true);
+        try {
+            if (filter == Filter.ADAPTIVE) {
+                // filtered bytes are small values that gain more from entropy coding than from matches, as in libpng,
+                // worth its extra time only when the smallest output is asked for
+                deflater.setStrategy(Deflater.FILTERED);
+            }
+            if (dictionary != null) {
+                int size = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - size, size);
+            }
+            deflater.setInput(block);
+            byte[] output = new byte[Math.max(64, block.length / 2)];
+            int length = 0;
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int written = deflater.deflate(output, length, output.length - length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += written;
+                if (last ? deflater.finished() : length < output.length && deflater.needsInput())
+                    break;
+            }
+            var adler = new Adler32();
+            adler.update(block);
+            return new Block(output, length, adler.getValue(), block.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Adler-32 of the concatenation of two sequences, from the checksum of each (zlib's adler32_combine)
+     * @param adler1 (long) - Checksum of the first sequence
+     * @param adler2 (long) - Checksum of the second sequence
+     * @param length2 (long) - Length of the second sequence
+     * @return (long) - Checksum of both sequences
+     */
+    static long combine(long adler1, long adler2, long length2){
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = remainder * sum1 % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += (adler1 >>> 16 & 0xFFFF) + (adler2 >>> 16 & 0xFFFF) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | sum2 << 16;
+    }
+
+    // ==================================================================================
+    // ===================================== FILTERS ====================================
+    // ==================================================================================
+
+    private static void toBytes(int[] pixels, byte[] row, boolean alpha){
+        if (alpha) {
+            for (int x = 0, i = 0; x < pixels.length; x++, i += 4) {
+                int pixel = pixels[x];
+                row[i] = (byte) (pixel >> 16);
+                row[i + 1] = (byte) (pixel >> 8);
+                row[i + 2] = (byte) pixel;
+                row[i + 3] = (byte) (pixel >>> 24);
+            }
+        } else {
+            for (int x = 0, i = 0; x < pixels.length; x++, i += 3) {
+                int pixel = pixels[x];
+                row[i] = (byte) (pixel >> 16);
+                row[i + 1] = (byte) (pixel >> 8);
+                row[i + 2] = (byte) pixel;
+            }
+        }
+    }
+
+    /**
+     * Write the filter type and the filtered bytes of a row
+     */
+    private void filterRow(byte[] row, byte[] previous, int bpp, byte[] out, int offset, byte[][] scratch){
+        if (filter != Filter.ADAPTIVE) {
+            filter(filter.ordinal(), row, previous, bpp, out, offset);
+            return;
+        }
+        // smallest sum of the filtered bytes taken as signed values, as libpng does
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < scratch.length; type++) {
+            filter(type, row, previous, bpp, scratch[type], 0);
+            long sum = 0;
+            for (int i = 1; i < scratch[type].length; i++) {
+                sum += Math.abs(scratch[type][i]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        System.arraycopy(scratch[best], 0, out, offset, row.length + 1);
+    }
+
+    private static void filter(int type, byte[] row, byte[] previous, int bpp, byte[] out, int offset){
+        out[offset] = (byte) type;
+        offset++;
+        int length = row.length;
+        switch (type) {
+            case 0 -> System.arraycopy(row, 0, out, offset, length);
+            case 1 -> {
+                System.arraycopy(row, 0, out, offset, bpp);
+                for (int i = bpp; i < length; i++)
+                    out[offset + i] = (byte) (row[i] - row[i - bpp]);
+            }
+            case 2 -> {
+                for (int i = 0; i < length; i++)
+                    out[offset + i] = (byte) (row[i] - previous[i]);
+            }
+            case 3 -> {
+                for (int i = 0; i < bpp; i++)
+                    out[offset + i] = (byte) (row[i] - ((previous[i] & 0xFF) >>> 1));
+                for (int i = bpp; i < length; i++)
+                    out[offset + i] = (byte) (row[i] - ((row[i - bpp] & 0xFF) + (previous[i] & 0xFF) >>> 1));
+            }
+            default -> {
+                // with a = c = 0, the predictor of the first pixel is always b
+                for (int i = 0; i < bpp; i++)
+                    out[offset + i] = (byte) (row[i] - previous[i]);
+                for (int i = bpp; i < length; i++)
+                    out[offset + i] = (byte) (row[i] - paeth(row[i - bpp] & 0xFF, previous[i] & 0xFF, previous[i - bpp] & 0xFF));
+            }
+        }
+    }
+
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value){
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,406 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Many "Quite Ok Image" files packed in a single file, looked up by name.
+ * <p>
+ * Layout, all numbers big endian :
+ * <ul>
+ *     <li>header : magic "qoia", version, 3 zero bytes</li>
+ *     <li>the files, unchanged, one after the other</li>
+ *     <li>index : one record of {@value #RECORD_SIZE} bytes per entry, sorted by the UTF-8 bytes of the names :
+ *     offset (8), length (4), width (4), height (4), offset in the names (4), length of the name (2),
+ *     channels (1), color space (1), 4 zero bytes</li>
+ *     <li>the names in UTF-8, one after the other</li>
+ *     <li>trailer : offset of the index (8), number of entries (4), magic "qoia"</li>
+ * </ul>
+ * An opened archive is mapped in memory once, a lookup is a binary search in the mapped index
+ * and reading an entry copies it from the mapping, without any system call. An archive can be
+ * shared by several threads. The archives are limited to 2 GiB, the size of a mapping.
+ * <p>
+ * Appending writes the new files and a new index after the end of the archive, the file only grows :
+ * an archive opened before keeps reading its own index, and an interrupted append leaves the
+ * previous trailer at the end of the file. An entry appended under an existing name replaces it,
+ * the previous file and the previous index stay in the archive until it is compacted.
+ */
+public final class QOIArchive {
+
+    private static final byte[] MAGIC = {'q', 'o', 'i', 'a'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 32;
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * Entry of an archive
+     * @param name (String) - Name of the entry
+     * @param offset (long) - Position of the "Quite Ok Image" file in the archive
+     * @param length (int) - Length of the file
+     * @param width (int) - Width of the image, from its header
+     * @param height (int) - Height of the image, from its header
+     * @param channels (byte) - Number of channels, from its header
+     * @param colorSpace (byte) - Color space, from its header
+     */
+    public record Entry(String name, long offset, int length, int width, int height, byte channels, byte colorSpace){}
+
+    private final ByteBuffer mapping;
+    private final int count;
+    private final int indexOffset;
+    private final int namesOffset;
+
+    private QOIArchive(ByteBuffer mapping, int count, int indexOffset){
+        this.mapping = mapping;
+        this.count = count;
+        this.indexOffset = indexOffset;
+        this.namesOffset = indexOffset + count * RECORD_SIZE;
+    }
+
+    /**
+     * Map an archive in memory
+     * @param archive (Path) - Path to the archive
+     * @return (QOIArchive) - The opened archive
+     */
+    public static QOIArchive open(Path archive){
+        assert archive != null;
+        try (var channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return Helper.fail("The archive \"%s\" is larger than 2 GiB", archive);
+            if (size < HEADER_SIZE + TRAILER_SIZE)
+                return Helper.fail("\"%s\" is not an archive of \"Quite Ok Image\"", archive);
+            // the mapping stays valid once the channel is closed
+            var mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+            int trailer = (int) size - TRAILER_SIZE;
+            if (!hasMagic(mapping, 0) || mapping.get(4) != VERSION || !hasMagic(mapping, trailer + 12))
+                return Helper.fail("\"%s\" is not an archive of \"Quite Ok Image\"", archive);
+            long indexOffset = mapping.getLong(trailer);
+            long count = mapping.getInt(trailer + 8) & 0xFFFFFFFFL;
+            if (indexOffset < HEADER_SIZE || indexOffset + count * RECORD_SIZE > trailer)
+                return Helper.fail("The index of the archive \"%s\" is corrupted", archive);
+            return new QOIArchive(mapping, (int) count, (int) indexOffset);
+        } catch (IOException e){
+            return Helper.fail("Cannot open the archive \"%s\" : %s", archive, e.getMessage());
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== LOOKUP =====================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Number of entries
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * @return (List) - The entries, sorted by the UTF-8 bytes of their name, read from the index on access
+     */
+    public List<Entry> entries(){
+        return new AbstractList<>() {
+            @Override
+            public Entry get(int index){
+                return entry(index);
+            }
+
+            @Override
+            public int size(){
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Find an entry with a binary search in the index
+     * @param name (String) - Name of the entry
+     * @return (Optional) - The entry, empty if there is none of this name
+     */
+    public Optional<Entry> entry(String name){
+        assert name != null;
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareName(middle, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return Optional.of(entry(middle));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @param entry (Entry) - Entry of this archive
+     * @return (ByteBuffer) - Read-only view of the "Quite Ok Image" file in the mapping
+     */
+    public ByteBuffer content(Entry entry){
+        assert entry != null;
+        return mapping.slice((int) entry.offset(), entry.length());
+    }
+
+    /**
+     * @param name (String) - Name of the entry
+     * @return (Optional) - Copy of the "Quite Ok Image" file, empty if there is no entry of this name
+     */
+    public Optional<byte[]> read(String name){
+        return entry(name).map(this::read);
+    }
+
+    /**
+     * @param entry (Entry) - Entry of this archive
+     * @return (byte[]) - Copy of the "Quite Ok Image" file
+     */
+    public byte[] read(Entry entry){
+        byte[] file = new byte[entry.length()];
+        content(entry).get(file);
+        return file;
+    }
+
+    /**
+     * @param entry (Entry) - Entry of this archive
+     * @return (QOIStreamDecoder) - Decoder over a copy of the file, positioned on the first pixel
+     */
+    public QOIStreamDecoder decoder(Entry entry){
+        return new QOIStreamDecoder(read(entry));
+    }
+
+    /**
+     * @param entry (Entry) - Entry of this archive
+     * @return (Helper.Image) - The decoded image
+     */
+    public Helper.Image decode(Entry entry){
+        return FlatImage.decode(decoder(entry)).toImage();
+    }
+
+    // ==================================================================================
+    // ================================ BUILD AND UPDATE ================================
+    // ==================================================================================
+
+    /**
+     * Create an archive, replacing any previous file atomically
+     * @param archive (Path) - Path to the archive
+     * @param files (Map) - "Quite Ok Image" file of every entry name
+     */
+    public static void build(Path archive, Map<String, Path> files){
+        assert archive != null && files != null;
+        replace(archive, channel -> {
+            writeFully(channel, ByteBuffer.wrap(new byte[]{MAGIC[0], MAGIC[1], MAGIC[2], MAGIC[3], VERSION, 0, 0, 0}));
+            var entries = new TreeMap<byte[], Entry>(Arrays::compareUnsigned);
+            append(channel, entries, files);
+            writeIndex(channel, entries);
+        });
+    }
+
+    /**
+     * Add files to an archive. The files are written after the end of the archive, followed by the new index
+     * @param archive (Path) - Path to an existing archive
+     * @param files (Map) - "Quite Ok Image" file of every entry name, replacing the entries of the same name
+     */
+    public static void append(Path archive, Map<String, Path> files){
+        assert archive != null && files != null;
+        var existing = open(archive);
+        var entries = existing.sortedEntries();
+        long end = existing.mapping.capacity();
+        try (var channel = FileChannel.open(archive, StandardOpenOption.WRITE)) {
+            channel.position(end);
+            try {
+                append(channel, entries, files);
+                writeIndex(channel, entries);
+                // the new trailer is on the disk before the append returns
+                channel.force(false);
+            } catch (IOException | RuntimeException e){
+                // the previous trailer ends the file again
+                channel.truncate(end);
+                throw e;
+            }
+        } catch (IOException e){
+            Helper.fail("Cannot append to the archive \"%s\" : %s", archive, e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrite an archive without the files of the replaced entries, replacing it atomically
+     * @param archive (Path) - Path to the archive
+     * @return (long) - Number of bytes reclaimed
+     */
+    public static long compact(Path archive){
+        assert archive != null;
+        var existing = open(archive);
+        long before = existing.mapping.capacity();
+        replace(archive, channel -> {
+            writeFully(channel, existing.mapping.slice(0, HEADER_SIZE));
+            var entries = new TreeMap<byte[], Entry>(Arrays::compareUnsigned);
+            for (int i = 0; i < existing.count; i++) {
+                var entry = existing.entry(i);
+                long offset = channel.position();
+                writeFully(channel, existing.content(entry));
+                entries.put(existing.name(i), new Entry(entry.name(), offset, entry.length(),
+                        entry.width(), entry.height(), entry.channels(), entry.colorSpace()));
+            }
+            writeIndex(channel, entries);
+        });
+        try {
+            return before - Files.size(archive);
+        } catch (IOException e){
+            return Helper.fail("Cannot read the size of the archive \"%s\" : %s", archive, e.getMessage());
+        }
+    }
+
+    // ==================================================================================
+    // ================================= FILE LAYOUT ====================================
+    // ==================================================================================
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Write a new archive next to the target and move it over the target once complete
+     */
+    private static void replace(Path archive, Writer writer){
+        var directory = archive.toAbsolutePath().getParent();
+        try {
+            var temporary = Files.createTempFile(directory, archive.getFileName().toString(), ".tmp");
+            try {
+                try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writer.write(channel);
+                }
+                Files.move(temporary, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e){
+            Helper.fail("Cannot write the archive \"%s\" : %s", archive, e.getMessage());
+        }
+    }
+
+    /**
+     * Write files at the position of the channel and add them to the entries
+     */
+    private static void append(FileChannel channel, TreeMap<byte[], Entry> entries, Map<String, Path> files) throws IOException {
+        for (var source : files.entrySet()) {
+            String name = source.getKey();
+            byte[] key = name.getBytes(StandardCharsets.UTF_8);
+            if (key.length > 0xFFFF)
+                Helper.fail("The name \"%s\" is too long", name);
+            byte[] file = Files.readAllBytes(source.getValue());
+            if (file.length < QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length
+                    || !Arrays.equals(file, 0, 4, QOISpecification.QOI_MAGIC, 0, 4))
+                Helper.fail("\"%s\" is not a \"Quite Ok Image\" file", source.getValue());
+            int[] header = QOIDecoder.decodeHeader(Arrays.copyOf(file, QOISpecification.HEADER_SIZE));
+            long offset = channel.position();
+            writeFully(channel, ByteBuffer.wrap(file));
+            entries.put(key, new Entry(name, offset, file.length, header[0], header[1], (byte) header[2], (byte) header[3]));
+        }
+    }
+
+    private static void writeIndex(FileChannel channel, TreeMap<byte[], Entry> entries) throws IOException {
+        long indexOffset = channel.position();
+        var records = ByteBuffer.allocate(entries.size() * RECORD_SIZE);
+        int namesLength = 0;
+        for (var entry : entries.entrySet()) {
+            var value = entry.getValue();
+            records.putLong(value.offset())
+                    .putInt(value.length())
+                    .putInt(value.width())
+                    .putInt(value.height())
+                    .putInt(namesLength)
+                    .putShort((short) entry.getKey().length)
+                    .put(value.channels())
+                    .put(value.colorSpace())
+                    .putInt(0);
+            namesLength += entry.getKey().length;
+        }
+        var names = ByteBuffer.allocate(namesLength);
+        for (byte[] name : entries.keySet()) {
+            names.put(name);
+        }
+        var trailer = ByteBuffer.allocate(TRAILER_SIZE).putLong(indexOffset).putInt(entries.size()).put(MAGIC);
+        if (indexOffset + records.capacity() + names.capacity() + TRAILER_SIZE > Integer.MAX_VALUE)
+            Helper.fail("The archive would be larger than 2 GiB");
+        writeFully(channel, records.flip());
+        writeFully(channel, names.flip());
+        writeFully(channel, trailer.flip());
+    }
+
+    // ==================================================================================
+    // ================================ UTILITY METHODS =================================
+    // ==================================================================================
+
+    private Entry entry(int index){
+        int record = indexOffset + index * RECORD_SIZE;
+        return new Entry(new String(name(index), StandardCharsets.UTF_8),
+                mapping.getLong(record),
+                mapping.getInt(record + 8),
+                mapping.getInt(record + 12),
+                mapping.getInt(record + 16),
+                mapping.get(record + 26),
+                mapping.get(record + 27));
+    }
+
+    private byte[] name(int index){
+        int record = indexOffset + index * RECORD_SIZE;
+        byte[] name = new byte[mapping.getShort(record + 24) & 0xFFFF];
+        mapping.get(namesOffset + mapping.getInt(record + 20), name);
+        return name;
+    }
+
+    /**
+     * Compare the name of an entry with a key, as unsigned bytes, without copying the name
+     */
+    private int compareName(int index, byte[] key){
+        int record = indexOffset + index * RECORD_SIZE;
+        int start = namesOffset + mapping.getInt(record + 20);
+        int length = mapping.getShort(record + 24) & 0xFFFF;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int comparison = Byte.compareUnsigned(mapping.get(start + i), key[i]);
+            if (comparison != 0)
+                return comparison;
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private TreeMap<byte[], Entry> sortedEntries(){
+        var entries = new TreeMap<byte[], Entry>(Arrays::compareUnsigned);
+        for (int i = 0; i < count; i++) {
+            entries.put(name(i), entry(i));
+        }
+        return entries;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer, int offset){
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(offset + i) != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,242 @@
+package cs107;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous versions of the codec entry points. Every operation runs on the given
+ * executor (the common pool by default) and never blocks the calling thread.
+ */
+public final class QOIAsync {
+
+    private QOIAsync(){}
+
+    // ==================================================================================
+    // ============================= COMPLETABLE FUTURE API =============================
+    // ==================================================================================
+
+    /**
+     * Asynchronous {@link QOIEncoder#qoiFile(Helper.Image)} on the common pool
+     */
+    public static CompletableFuture<byte[]> encode(Helper.Image image){
+        return encode(image, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Asynchronous {@link QOIEncoder#qoiFile(Helper.Image)}
+     * @param image (Helper.Image) - Image to encode
+     * @param executor (Executor) - Executor running the encoder
+     * @return (CompletableFuture) - Content of the "Quite Ok Image" file
+     */
+    public static CompletableFuture<byte[]> encode(Helper.Image image, Executor executor){
+        assert image != null && executor != null;
+        return CompletableFuture.supplyAsync(() -> QOIEncoder.qoiFile(image), executor);
+    }
+
+    /**
+     * Asynchronous {@link QOIDecoder#decodeQoiFile(byte[])} on the common pool
+     */
+    public static CompletableFuture<Helper.Image> decode(byte[] content){
+        return decode(content, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Asynchronous {@link QOIDecoder#decodeQoiFile(byte[])}
+     * @param content (byte[]) - Content of the "Quite Ok Image" file
+     * @param executor (Executor) - Executor running the decoder
+     * @return (CompletableFuture) - The decoded image
+     */
+    public static CompletableFuture<Helper.Image> decode(byte[] content, Executor executor){
+        assert content != null && executor != null;
+        return CompletableFuture.supplyAsync(() -> {
+            var decoder = new QOIStreamDecoder(content);
+            int[][] data = new int[decoder.height()][decoder.width()];
+            for (int[] row : data) {
+                decoder.nextRow(row);
+            }
+            decoder.checkEnd();
+            return new Helper.Image(data, decoder.channels(), decoder.colorSpace());
+        }, executor);
+    }
+
+    /**
+     * Asynchronous {@link QOITranscoder#encode(BufferedImage, OutputStream)} of an image file
+     * @param inputFile (String) - Path to the image (png, jpeg ...)
+     * @param executor (Executor) - Executor running the conversion
+     * @return (CompletableFuture) - Content of the "Quite Ok Image" file
+     */
+    public static CompletableFuture<byte[]> pngToQoi(String inputFile, Executor executor){
+        assert inputFile != null && executor != null;
+        return CompletableFuture.supplyAsync(() -> {
+            var output = new ByteArrayOutputStream();
+            QOITranscoder.encode(QOITranscoder.readImage(inputFile), output);
+            return output.toByteArray();
+        }, executor);
+    }
+
+    /**
+     * Asynchronous {@link QOITranscoder#pngToQoi(String, String)}
+     */
+    public static CompletableFuture<Void> pngToQoi(String inputFile, String outputFile, Executor executor){
+        assert inputFile != null && outputFile != null && executor != null;
+        return CompletableFuture.runAsync(() -> QOITranscoder.pngToQoi(inputFile, outputFile), executor);
+    }
+
+    /**
+     * Asynchronous {@link QOITranscoder#qoiToPng(String, String)}
+     */
+    public static CompletableFuture<Void> qoiToPng(String inputFile, String outputFile, Executor executor){
+        assert inputFile != null && outputFile != null && executor != null;
+        return CompletableFuture.runAsync(() -> QOITranscoder.qoiToPng(inputFile, outputFile), executor);
+    }
+
+    // ==================================================================================
+    // ================================== PUBLISHER API =================================
+    // ==================================================================================
+
+    /**
+     * Consecutive rows of a decoded image
+     * @param firstRow (int) - Index of the first row of the batch
+     * @param rows (int[][]) - ARGB pixels of the rows, owned by the subscriber
+     */
+    public record RowBatch(int firstRow, int[][] rows){}
+
+    /**
+     * Publisher decoding a "Quite Ok Image" file in batches of rows, only as fast as the
+     * subscriber requests them. Every subscriber decodes the file on its own
+     * @param content (byte[]) - Content of the file
+     * @param rowsPerBatch (int) - Number of rows of every batch but the last one
+     * @param executor (Executor) - Executor running the decoder
+     * @return (Flow.Publisher) - The publisher
+     */
+    public static Flow.Publisher<RowBatch> rows(byte[] content, int rowsPerBatch, Executor executor){
+        assert content != null;
+        return rows(() -> new QOIStreamDecoder(content), rowsPerBatch, executor);
+    }
+
+    /**
+     * Publisher decoding an image in batches of rows, only as fast as the subscriber requests them
+     * @param decoders (Supplier) - Creates a new decoder, positioned on the first pixel, for every subscriber
+     * @param rowsPerBatch (int) - Number of rows of every batch but the last one
+     * @param executor (Executor) - Executor running the decoder
+     * @return (Flow.Publisher) - The publisher
+     */
+    public static Flow.Publisher<RowBatch> rows(Supplier<QOIStreamDecoder> decoders, int rowsPerBatch, Executor executor){
+        assert decoders != null && executor != null;
+        assert rowsPerBatch > 0;
+        return subscriber -> {
+            assert subscriber != null;
+            var subscription = new RowSubscription(subscriber, decoders, rowsPerBatch, executor);
+            subscriber.onSubscribe(subscription);
+        };
+    }
+
+    /**
+     * Emits at most one batch per requested item. The decoding is serialized by a work in
+     * progress counter, so it only ever runs on one thread at a time
+     */
+    private static final class RowSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super RowBatch> subscriber;
+        private final Supplier<QOIStreamDecoder> decoders;
+        private final int rowsPerBatch;
+        private final Executor executor;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest = null;
+        // also set by the requesting thread when the executor rejects the drain
+        private volatile boolean done = false;
+
+        // only touched by the draining thread
+        private QOIStreamDecoder decoder;
+        private int nextRow = 0;
+
+        private RowSubscription(Flow.Subscriber<? super RowBatch> subscriber, Supplier<QOIStreamDecoder> decoders,
+                                int rowsPerBatch, Executor executor){
+            this.subscriber = subscriber;
+            this.decoders = decoders;
+            this.rowsPerBatch = rowsPerBatch;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n){
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("non-positive subscription request : " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+        }
+
+        private void schedule(){
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e){
+                    done = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void run(){
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain(){
+            if (done || cancelled)
+                return;
+            try {
+                if (invalidRequest != null) {
+                    done = true;
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                if (decoder == null) {
+                    decoder = decoders.get();
+                }
+                while (demand.get() > 0 && nextRow < decoder.height() && !cancelled) {
+                    int count = Math.min(rowsPerBatch, decoder.height() - nextRow);
+                    int[][] rows = new int[count][decoder.width()];
+                    for (int[] row : rows) {
+                        decoder.nextRow(row);
+                    }
+                    var batch = new RowBatch(nextRow, rows);
+                    nextRow += count;
+                    demand.decrementAndGet();
+                    subscriber.onNext(batch);
+                }
+                if (nextRow == decoder.height() && !cancelled) {
+                    done = true;
+                    decoder.checkEnd();
+                    subscriber.onComplete();
+                }
+            } catch (RuntimeException e){
+                done = true;
+                subscriber.onError(e);
+            }
+        }
+    }
+
+}
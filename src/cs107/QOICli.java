@@ -0,0 +1,403 @@
+package cs107;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Command line entry point.
+ * <pre>
+ * usage : QOICli &lt;command&gt; [options] &lt;inputs...&gt;
+ *   encode  image (png, jpeg, ppm, pam ...) to .qoi
+ *   decode  .qoi to .png
+ *   info    print the header of .qoi files
+ *   verify  fully decode .qoi files and check their EOF
+ *   bench   encode and decode images in memory
+ * options :
+ *   -j N            number of files processed in parallel (default : 1)
+ *   -o DIR          output directory (default : next to the input)
+ *   -n N            iterations of bench (default : 5)
+ *   --detect-alpha  encode opaque images with 3 channels
+ * inputs are files, directories (searched recursively) or glob patterns such as "shots/*.png"
+ * </pre>
+ * Unlike {@link Main#pngToQoi(String, String)}, nothing is written to the "res/" folder.
+ */
+public final class QOICli {
+
+    private QOICli(){}
+
+    private record Options(String command, int jobs, Path output, int iterations, boolean detectAlpha, List<Input> inputs){}
+
+    /**
+     * File to process
+     * @param file (Path) - The file
+     * @param root (Path) - Directory or glob root it was found under, its parent for a file named
+     *             on the command line. Its path relative to the root is kept under the output directory
+     */
+    private record Input(Path file, Path root){}
+
+    /**
+     * Outcome of one file
+     * @param input (Path) - Processed file
+     * @param bytesIn (long) - Size of the input
+     * @param bytesOut (long) - Size of the output, 0 if nothing was written
+     * @param nanos (long) - Processing time
+     * @param message (String) - Line to print, null when there is nothing to report
+     * @param failed (boolean) - true if the file could not be processed
+     */
+    private record Result(Path input, long bytesIn, long bytesOut, long nanos, String message, boolean failed){}
+
+    public static void main(String[] args){
+        Options options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+        if (options.inputs().isEmpty()) {
+            System.err.println("No input file found");
+            System.exit(2);
+        }
+        System.exit(run(options) ? 0 : 1);
+    }
+
+    private static void usage(){
+        System.err.println("usage : QOICli <encode|decode|info|verify|bench> [-j N] [-o DIR] [-n N] [--detect-alpha] <inputs...>");
+    }
+
+    // ==================================================================================
+    // ================================ ARGUMENT PARSING ================================
+    // ==================================================================================
+
+    private static Options parse(String[] args){
+        if (args.length == 0)
+            throw new IllegalArgumentException("Missing command");
+        String command = args[0];
+        if (!List.of("encode", "decode", "info", "verify", "bench").contains(command))
+            throw new IllegalArgumentException("Unknown command : " + command);
+
+        int jobs = 1;
+        int iterations = 5;
+        Path output = null;
+        boolean detectAlpha = false;
+        List<String> patterns = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-j" -> jobs = positive(value(args, ++i, "-j"));
+                case "-n" -> iterations = positive(value(args, ++i, "-n"));
+                case "-o" -> output = Path.of(value(args, ++i, "-o"));
+                case "--detect-alpha" -> detectAlpha = true;
+                default -> {
+                    if (args[i].startsWith("-"))
+                        throw new IllegalArgumentException("Unknown option : " + args[i]);
+                    patterns.add(args[i]);
+                }
+            }
+        }
+
+        // directories and globs only pick the files the command can read
+        List<String> extensions = switch (command) {
+            case "encode" -> Stream.concat(sourceSuffixes(), Stream.of("ppm", "pnm", "pam"))
+                    .map(suffix -> "." + suffix).distinct().toList();
+            case "bench" -> sourceSuffixes().map(suffix -> "." + suffix).toList();
+            default -> List.of(".qoi");
+        };
+        Map<Path, Input> inputs = new LinkedHashMap<>();
+        for (String pattern : patterns) {
+            for (Input input : expand(pattern, extensions)) {
+                inputs.putIfAbsent(input.file(), input);
+            }
+        }
+        return new Options(command, jobs, output, iterations, detectAlpha, List.copyOf(inputs.values()));
+    }
+
+    /**
+     * Suffixes of the images ImageIO reads, but "Quite Ok Image" files once {@link QOIImageIO} is
+     * registered : the outputs of a previous run are never taken as sources
+     */
+    private static Stream<String> sourceSuffixes(){
+        return Stream.of(ImageIO.getReaderFileSuffixes()).filter(suffix -> !suffix.equalsIgnoreCase("qoi"));
+    }
+
+    private static String value(String[] args, int i, String option){
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int positive(String value){
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0)
+                return n;
+        } catch (NumberFormatException ignored){
+            // reported below
+        }
+        throw new IllegalArgumentException("Expected a positive number : " + value);
+    }
+
+    /**
+     * Files designated by an argument : the file itself, the files of a directory or the files matching a glob
+     * @param pattern (String) - Argument of the command line
+     * @param extensions (List) - Extensions of the files to keep in directories and globs
+     * @return (List) - The files, sorted
+     */
+    private static List<Input> expand(String pattern, List<String> extensions){
+        Path path = Path.of(pattern);
+        if (Files.isRegularFile(path)) {
+            Path file = path.normalize();
+            Path parent = file.getParent();
+            return List.of(new Input(file, parent == null ? Path.of("") : parent));
+        }
+
+        final Path root;
+        Stream<Path> candidates;
+        try {
+            if (Files.isDirectory(path)) {
+                root = path;
+                candidates = Files.walk(root);
+            } else if (isGlob(pattern)) {
+                // walk from the longest directory without wildcards
+                Path prefix = path.isAbsolute() ? path.getRoot() : Path.of("");
+                for (Path part : path) {
+                    if (isGlob(part.toString()))
+                        break;
+                    prefix = prefix.resolve(part);
+                }
+                root = prefix.toString().isEmpty() ? Path.of(".") : prefix;
+                var matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                candidates = root.equals(Path.of("."))
+                        ? Files.walk(root).map(root::relativize).filter(matcher::matches)
+                        : Files.walk(root).filter(matcher::matches);
+            } else {
+                System.err.printf("No such file : %s%n", pattern);
+                return List.of();
+            }
+            try (var files = candidates) {
+                return files.filter(Files::isRegularFile)
+                        .filter(p -> extensions.stream().anyMatch(p.getFileName().toString().toLowerCase(Locale.ROOT)::endsWith))
+                        .map(Path::normalize)
+                        .sorted()
+                        .map(p -> new Input(p, root.equals(Path.of(".")) ? Path.of("") : root.normalize()))
+                        .toList();
+            }
+        } catch (IOException e){
+            System.err.printf("Cannot list %s : %s%n", pattern, e.getMessage());
+            return List.of();
+        }
+    }
+
+    private static boolean isGlob(String pattern){
+        return pattern.contains("*") || pattern.contains("?") || pattern.contains("[") || pattern.contains("{");
+    }
+
+    // ==================================================================================
+    // ==================================== COMMANDS ====================================
+    // ==================================================================================
+
+    private static boolean run(Options options){
+        if (options.output() != null) {
+            try {
+                Files.createDirectories(options.output());
+            } catch (IOException e){
+                System.err.printf("Cannot create %s : %s%n", options.output(), e.getMessage());
+                return false;
+            }
+        }
+        if (!uniqueOutputs(options))
+            return false;
+
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        var executor = Executors.newFixedThreadPool(options.jobs());
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Input input : options.inputs()) {
+                futures.add(executor.submit(() -> process(options, input)));
+            }
+            for (var future : futures) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e){
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (result.message() != null) {
+                    (result.failed() ? System.err : System.out).println(result.message());
+                }
+                results.add(result);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+        summary(options, results, System.nanoTime() - start);
+        return results.stream().noneMatch(Result::failed);
+    }
+
+    private static Result process(Options options, Input source){
+        Path input = source.file();
+        long start = System.nanoTime();
+        long bytesIn = 0;
+        try {
+            bytesIn = Files.size(input);
+            return switch (options.command()) {
+                case "encode" -> {
+                    Path output = prepare(output(options, source, ".qoi"));
+                    if (QOIRawReader.isSupported(input.toString()))
+                        QOIRawReader.toQoi(input.toString(), output.toString(), options.detectAlpha());
+                    else
+                        QOITranscoder.pngToQoi(input.toString(), output.toString(), options.detectAlpha());
+                    yield new Result(input, bytesIn, Files.size(output), System.nanoTime() - start, null, false);
+                }
+                case "decode" -> {
+                    Path output = prepare(output(options, source, ".png"));
+                    QOITranscoder.qoiToPng(input.toString(), output.toString());
+                    yield new Result(input, bytesIn, Files.size(output), System.nanoTime() - start, null, false);
+                }
+                case "info" -> {
+                    byte[] header;
+                    try (var stream = Files.newInputStream(input)) {
+                        header = stream.readNBytes(QOISpecification.HEADER_SIZE);
+                    }
+                    if (header.length != QOISpecification.HEADER_SIZE
+                            || !ArrayUtils.equals(ArrayUtils.extract(header, 0, 4), QOISpecification.QOI_MAGIC))
+                        yield new Result(input, bytesIn, 0, System.nanoTime() - start,
+                                String.format("%s : not a \"Quite Ok Image\"", input), true);
+                    int[] h = QOIDecoder.decodeHeader(header);
+                    yield new Result(input, bytesIn, 0, System.nanoTime() - start, String.format(
+                            "%s : %d x %d, %d channels, color space %d, %d bytes (%.2f bits per pixel)",
+                            input, h[0], h[1], h[2], h[3], bytesIn, 8d * bytesIn / ((double) h[0] * h[1])), false);
+                }
+                case "verify" -> {
+                    try (var stream = Files.newInputStream(input)) {
+                        var decoder = new QOIStreamDecoder(stream);
+                        decoder.skip(decoder.remaining());
+                        decoder.checkEnd();
+                        if (stream.read() != -1)
+                            Helper.fail("trailing bytes after the EOF marker");
+                    }
+                    yield new Result(input, bytesIn, 0, System.nanoTime() - start, String.format("%s : OK", input), false);
+                }
+                default -> bench(options, input, bytesIn);
+            };
+        } catch (IOException | RuntimeException | AssertionError e){
+            return new Result(input, bytesIn, 0, System.nanoTime() - start,
+                    String.format("%s : FAILED (%s)", input, e.getMessage()), true);
+        }
+    }
+
+    private static Result bench(Options options, Path input, long bytesIn){
+        var image = QOITranscoder.readImage(input.toString());
+        long pixels = (long) image.getWidth() * image.getHeight();
+        long encode = Long.MAX_VALUE;
+        long decode = Long.MAX_VALUE;
+        byte[] qoi = null;
+        for (int i = 0; i < options.iterations(); i++) {
+            long start = System.nanoTime();
+            var output = new ByteArrayOutputStream();
+            QOITranscoder.encode(image, output, options.detectAlpha());
+            qoi = output.toByteArray();
+            long middle = System.nanoTime();
+            QOITranscoder.decode(new QOIStreamDecoder(qoi));
+            long end = System.nanoTime();
+            encode = Math.min(encode, middle - start);
+            decode = Math.min(decode, end - middle);
+        }
+        double mpixels = pixels / 1e6;
+        return new Result(input, bytesIn, qoi.length, encode + decode, String.format(
+                "%s : %d bytes -> %d bytes (ratio %.1f%%), encode %.2f ms (%.1f MP/s), decode %.2f ms (%.1f MP/s)",
+                input, bytesIn, qoi.length, ratio(bytesIn, qoi.length),
+                encode / 1e6, mpixels / (encode / 1e9), decode / 1e6, mpixels / (decode / 1e9)), false);
+    }
+
+    private static Path output(Options options, Input input, String extension){
+        String name = input.file().getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        name = (dot > 0 ? name.substring(0, dot) : name) + extension;
+        if (options.output() == null)
+            return input.file().toAbsolutePath().resolveSibling(name);
+        Path relative = input.root().relativize(input.file()).resolveSibling(name);
+        return options.output().toAbsolutePath().resolve(relative).normalize();
+    }
+
+    // creates the subdirectory of the output directory the file goes to
+    private static Path prepare(Path output) throws IOException {
+        Files.createDirectories(output.getParent());
+        return output;
+    }
+
+    /**
+     * Check, before anything is written, that no two inputs would be written to the same
+     * file, which parallel jobs would race on
+     * @return (boolean) - true if every output is distinct
+     */
+    private static boolean uniqueOutputs(Options options){
+        String extension = switch (options.command()) {
+            case "encode" -> ".qoi";
+            case "decode" -> ".png";
+            default -> null;
+        };
+        if (extension == null)
+            return true;
+        Map<Path, Path> targets = new HashMap<>();
+        boolean unique = true;
+        for (Input input : options.inputs()) {
+            Path target = output(options, input, extension);
+            Path other = targets.putIfAbsent(target, input.file());
+            if (other != null) {
+                System.err.printf("%s and %s would both be written to %s%n", other, input.file(), target);
+                unique = false;
+            }
+        }
+        return unique;
+    }
+
+    private static void summary(Options options, List<Result> results, long nanos){
+        long failed = results.stream().filter(Result::failed).count();
+        long in = results.stream().filter(r -> !r.failed()).mapToLong(Result::bytesIn).sum();
+        long out = results.stream().filter(r -> !r.failed()).mapToLong(Result::bytesOut).sum();
+        double seconds = nanos / 1e9;
+        System.out.println("==========================================================================================");
+        System.out.printf("== %s : %d files, %d failed, %.3f s with %d jobs%n",
+                options.command(), results.size(), failed, seconds, options.jobs());
+        System.out.printf("== in %.2f MB, %.2f MB/s%n", in / 1e6, in / 1e6 / seconds);
+        if (out > 0) {
+            System.out.printf("== out %.2f MB, %.2f MB/s%n", out / 1e6, out / 1e6 / seconds);
+        }
+        if (options.command().equals("encode") && out > 0) {
+            System.out.printf("== ratio %.1f%%%n", ratio(in, out));
+        }
+        System.out.println("==========================================================================================");
+    }
+
+    /**
+     * {@link Main#ratio(int, int)} for sizes that may not fit in an int, both are scaled down alike
+     */
+    private static double ratio(long png, long qoi){
+        while (png > Integer.MAX_VALUE || qoi > Integer.MAX_VALUE) {
+            png >>= 1;
+            qoi >>= 1;
+        }
+        return Main.ratio((int) png, (int) Math.max(qoi, 1));
+    }
+
+}
@@ -1,10 +1,15 @@
 package cs107;
 
+import java.util.Arrays;
+
 import static cs107.Helper.Image;
 
 
 public final class QOIDecoder {
 
+    // longest run of a single chunk
+    private static final long MAX_PIXELS_PER_BYTE = 62;
+
     private QOIDecoder(){}
 
     // ==================================================================================
@@ -144,20 +149,141 @@ public final class QOIDecoder {
         return tab;
     }
 
+    @SuppressWarnings("try")
     public static Image decodeQoiFile(byte[] content){
         assert content != null;
         assert ArrayUtils.equals(ArrayUtils.extract(content, content.length - QOISpecification.QOI_EOF.length, QOISpecification.QOI_EOF.length), QOISpecification.QOI_EOF);
 
         byte[] header = ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE);
         int[] headers = decodeHeader(header);
+        int length = content.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length;
+
+        // a chunk is at least one byte and encodes at most 62 pixels, a forged header is caught before any allocation
+        long pixels = (long) headers[0] * headers[1];
+        if (pixels > MAX_PIXELS_PER_BYTE * length || pixels > Integer.MAX_VALUE)
+            Helper.fail("The header announces %d x %d pixels, more than %d bytes of data can encode", headers[0], headers[1], length);
+
+        try (var ignored = MemoryBudget.global().reserve(decodeQoiFileBytes(headers[0], headers[1], length))) {
+            byte[][] bytes = decodeData(
+                    ArrayUtils.extract(content, QOISpecification.HEADER_SIZE, length),
+                    headers[0], headers[1]
+            );
+
+            int[][] channelsToImage = ArrayUtils.channelsToImage(bytes, headers[1], headers[0]);
+            return new Image(channelsToImage, (byte) headers[2], (byte) headers[3]);
+        }
+    }
+
+    /**
+     * Memory used while decoding a file with {@link #decodeQoiFile(byte[])} : a copy of the data,
+     * a small array for every pixel and the returned image
+     */
+    static long decodeQoiFileBytes(long width, long height, long length){
+        long pixels = width * height;
+        // every pixel is a byte[4] of 24 bytes and its reference
+        return length + 16 + pixels * (24 + 4) + MemoryBudget.imageBytes(width, height);
+    }
+
+    // ==================================================================================
+    // ========================== SUBSAMPLED DECODING METHODS ===========================
+    // ==================================================================================
+
+    /**
+     * Decode a downscaled version of a "Quite Ok Image" file in one pass.
+     * Only one row of the full resolution image is kept in memory
+     * @param content (byte[]) - Content of the file
+     * @param maxWidth (int) - Maximal width of the thumbnail
+     * @param maxHeight (int) - Maximal height of the thumbnail
+     * @return (Image) - The thumbnail, box filtered
+     */
+    public static Image decodeThumbnail(byte[] content, int maxWidth, int maxHeight){
+        assert maxWidth > 0 && maxHeight > 0;
+        int[] headers = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int factor = Math.max(
+                Math.max(ceilDiv(headers[0], maxWidth), ceilDiv(headers[1], maxHeight)),
+                1);
+        return decodeThumbnail(content, factor, true);
+    }
 
-        byte[][] bytes = decodeData(
-                ArrayUtils.extract(content, QOISpecification.HEADER_SIZE, content.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length),
-                headers[0], headers[1]
-        );
+    /**
+     * Decode a downscaled version of a "Quite Ok Image" file in one pass.
+     * Only one row of the full resolution image is kept in memory
+     * @param content (byte[]) - Content of the file
+     * @param factor (int) - Subsampling factor, each output pixel covers factor x factor input pixels
+     * @param boxFilter (boolean) - Average the covered pixels if true, keep the top left one otherwise
+     * @return (Image) - The thumbnail
+     */
+    public static Image decodeThumbnail(byte[] content, int factor, boolean boxFilter){
+        assert content != null;
+        assert factor > 0;
+        return decodeThumbnail(new QOIStreamDecoder(content), factor, boxFilter);
+    }
+
+    /**
+     * Decode a downscaled version of the image read by the given decoder
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel
+     * @param factor (int) - Subsampling factor, each output pixel covers factor x factor input pixels
+     * @param boxFilter (boolean) - Average the covered pixels if true, keep the top left one otherwise
+     * @return (Image) - The thumbnail
+     */
+    public static Image decodeThumbnail(QOIStreamDecoder decoder, int factor, boolean boxFilter){
+        assert decoder != null;
+        assert factor > 0;
+        int width = decoder.width();
+        int height = decoder.height();
+        int thumbWidth = ceilDiv(width, factor);
+        int thumbHeight = ceilDiv(height, factor);
+        int[][] thumbnail = new int[thumbHeight][thumbWidth];
+        int[] row = new int[width];
+
+        if (!boxFilter) {
+            for (int y = 0; y < height; y++) {
+                if (y % factor != 0) {
+                    decoder.skip(width);
+                    continue;
+                }
+                decoder.nextRow(row);
+                int[] out = thumbnail[y / factor];
+                for (int x = 0; x < thumbWidth; x++) {
+                    out[x] = row[x * factor];
+                }
+            }
+            decoder.checkEnd();
+            return new Image(thumbnail, decoder.channels(), decoder.colorSpace());
+        }
+
+        // per output pixel : sum of a, r, g, b over the current band of rows
+        long[] sums = new long[thumbWidth * 4];
+        for (int y = 0; y < height; y++) {
+            decoder.nextRow(row);
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x];
+                int s = (x / factor) * 4;
+                sums[s] += pixel >>> 24;
+                sums[s + 1] += pixel >> 16 & 0xFF;
+                sums[s + 2] += pixel >> 8 & 0xFF;
+                sums[s + 3] += pixel & 0xFF;
+            }
+            if (y % factor == factor - 1 || y == height - 1) {
+                int rows = y % factor + 1;
+                int[] out = thumbnail[y / factor];
+                for (int x = 0; x < thumbWidth; x++) {
+                    int s = x * 4;
+                    long count = (long) rows * Math.min(factor, width - x * factor);
+                    out[x] = (int) ((sums[s] + count / 2) / count) << 24
+                            | (int) ((sums[s + 1] + count / 2) / count) << 16
+                            | (int) ((sums[s + 2] + count / 2) / count) << 8
+                            | (int) ((sums[s + 3] + count / 2) / count);
+                }
+                Arrays.fill(sums, 0);
+            }
+        }
+        decoder.checkEnd();
+        return new Image(thumbnail, decoder.channels(), decoder.colorSpace());
+    }
 
-        int[][] channelsToImage = ArrayUtils.channelsToImage(bytes, headers[1], headers[0]);
-        return new Image(channelsToImage, (byte) headers[2], (byte) headers[3]);
+    private static int ceilDiv(int value, int divisor){
+        return (value + divisor - 1) / divisor;
     }
 
 }
\ No newline at end of file
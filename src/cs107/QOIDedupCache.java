@@ -0,0 +1,245 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Persistent store of encoded images, keyed by the {@link QOIFingerprint} of their content,
+ * so that encoding an image already seen becomes a lookup.
+ * <p>
+ * Every entry is a "Quite Ok Image" file named after its fingerprint in the directory of the
+ * store. The total size of the files is bounded : the least recently used ones are deleted first.
+ * The recency survives restarts through the modification time of the files. The store can be
+ * shared by several threads of one process.
+ */
+public final class QOIDedupCache {
+
+    private static final String EXTENSION = ".qoi";
+
+    // variants of the fingerprint, one per encoding option
+    private static final int DEFAULT = 0;
+    private static final int DETECT_ALPHA = 1;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // size of every entry, from the least to the most recently used
+    private final LinkedHashMap<QOIFingerprint, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Open the store of a directory, created if needed. The entries already in the directory are
+     * kept, from the oldest to the newest, as long as they fit in {@code maxBytes}
+     * @param directory (Path) - Directory of the store
+     * @param maxBytes (long) - Maximal total size of the entries
+     */
+    public QOIDedupCache(Path directory, long maxBytes){
+        assert directory != null && maxBytes > 0;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(directory);
+            var found = new ArrayList<Path>();
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(QOIDedupCache::isEntry).forEach(found::add);
+            }
+            found.sort(Comparator.comparing(QOIDedupCache::modified));
+            for (var file : found) {
+                var name = file.getFileName().toString();
+                long size = Files.size(file);
+                entries.put(QOIFingerprint.parse(name.substring(0, name.length() - EXTENSION.length())), size);
+                bytes += size;
+            }
+        } catch (IOException e){
+            Helper.fail("Cannot open the cache \"%s\" : %s", directory, e.getMessage());
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    // ==================================================================================
+    // ==================================== ENCODING ====================================
+    // ==================================================================================
+
+    /**
+     * {@link QOIEncoder#qoiFile(Helper.Image)}, served from the store when the image was already encoded
+     */
+    public byte[] qoiFile(Helper.Image image){
+        var key = QOIFingerprint.of(image, DEFAULT);
+        return get(key).orElseGet(() -> store(key, QOIEncoder.qoiFile(image)));
+    }
+
+    /**
+     * {@link QOIEncoder#qoiFile(Helper.Image, boolean)}, served from the store when the image was already encoded
+     */
+    public byte[] qoiFile(Helper.Image image, boolean detectAlpha){
+        var key = QOIFingerprint.of(image, detectAlpha ? DETECT_ALPHA : DEFAULT);
+        return get(key).orElseGet(() -> store(key, QOIEncoder.qoiFile(image, detectAlpha)));
+    }
+
+    /**
+     * {@link QOIEncoder#qoiFile(FlatImage)}, served from the store when the image was already encoded
+     */
+    public byte[] qoiFile(FlatImage image){
+        var key = QOIFingerprint.of(image, DEFAULT);
+        return get(key).orElseGet(() -> store(key, QOIEncoder.qoiFile(image)));
+    }
+
+    // ==================================================================================
+    // ===================================== STORE ======================================
+    // ==================================================================================
+
+    /**
+     * @param key (QOIFingerprint) - Fingerprint of the image
+     * @return (Optional) - Path of the stored file, empty if the image is not in the store
+     */
+    public synchronized Optional<Path> path(QOIFingerprint key){
+        assert key != null;
+        if (entries.get(key) == null)
+            return Optional.empty();
+        return Optional.of(file(key));
+    }
+
+    /**
+     * @param key (QOIFingerprint) - Fingerprint of the image
+     * @return (Optional) - Content of the stored file, empty if the image is not in the store
+     */
+    public Optional<byte[]> get(QOIFingerprint key){
+        var file = path(key);
+        if (file.isEmpty()) {
+            misses.increment();
+            return Optional.empty();
+        }
+        try {
+            byte[] content = Files.readAllBytes(file.get());
+            Files.setLastModifiedTime(file.get(), FileTime.fromMillis(System.currentTimeMillis()));
+            hits.increment();
+            return Optional.of(content);
+        } catch (NoSuchFileException e){
+            // deleted behind our back
+            forget(key);
+            misses.increment();
+            return Optional.empty();
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Add a file to the store, evicting the least recently used entries if needed.
+     * A file larger than the store is not kept
+     * @param key (QOIFingerprint) - Fingerprint of the image
+     * @param content (byte[]) - Content of the "Quite Ok Image" file
+     * @return (byte[]) - {@code content}
+     */
+    public byte[] store(QOIFingerprint key, byte[] content){
+        assert key != null && content != null;
+        if (content.length > maxBytes)
+            return content;
+        var target = file(key);
+        try {
+            // readers never see a partially written file
+            var temporary = Files.createTempFile(directory, key.toString(), ".tmp");
+            try {
+                Files.write(temporary, content);
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            var previous = entries.put(key, (long) content.length);
+            bytes += content.length - (previous == null ? 0 : previous);
+            evict();
+        }
+        return content;
+    }
+
+    // ==================================================================================
+    // ===================================== METRICS ====================================
+    // ==================================================================================
+
+    public long hits(){
+        return hits.sum();
+    }
+
+    public long misses(){
+        return misses.sum();
+    }
+
+    public long evictions(){
+        return evictions.sum();
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized long bytes(){
+        return bytes;
+    }
+
+    // ==================================================================================
+    // ================================ UTILITY METHODS =================================
+    // ==================================================================================
+
+    private Path file(QOIFingerprint key){
+        return directory.resolve(key + EXTENSION);
+    }
+
+    private synchronized void forget(QOIFingerprint key){
+        var size = entries.remove(key);
+        if (size != null)
+            bytes -= size;
+    }
+
+    // called with the lock held
+    private void evict(){
+        var iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.getValue();
+            evictions.increment();
+            try {
+                Files.deleteIfExists(file(eldest.getKey()));
+            } catch (IOException e){
+                // the file is forgotten anyway, the directory may only grow until the next opening
+            }
+        }
+    }
+
+    private static boolean isEntry(Path file){
+        var name = file.getFileName().toString();
+        return name.endsWith(EXTENSION)
+                && name.length() == 32 + EXTENSION.length()
+                && name.chars().limit(32).allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    private static FileTime modified(Path file){
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e){
+            return FileTime.fromMillis(0);
+        }
+    }
+
+}
@@ -0,0 +1,421 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional wrapper around "Quite Ok Image" data compressed with Deflate.
+ * <p>
+ * The data section of the image is split into chunks of a fixed size and every chunk
+ * is deflated independently, so both compression and decompression run in parallel.
+ * <p>
+ * Layout : magic, "Quite Ok Image" header (14), chunk size (4), chunk count (4),
+ * index of the chunks (offset (4), raw size (4), compressed size (4) each, offsets
+ * relative to the end of the index) and the compressed chunks.
+ */
+public final class QOIDeflate {
+
+    private QOIDeflate(){}
+
+    // ==================================================================================
+    // ================================= WRAPPER FORMAT =================================
+    // ==================================================================================
+
+    /**
+     * Magic Number of a deflated "Quite Ok Image"
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'z'};
+
+    /**
+     * Size of the wrapper header, index excluded
+     */
+    public static final int HEADER_SIZE = MAGIC.length + QOISpecification.HEADER_SIZE + 4 + 4;
+
+    /**
+     * Size of an entry of the chunk index
+     */
+    public static final int INDEX_ENTRY_SIZE = 4 + 4 + 4;
+
+    /**
+     * Default size of the uncompressed chunks
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Default Deflate level, the one of zlib
+     */
+    public static final int DEFAULT_LEVEL = 6;
+
+    // a chunk encodes a pixel in at most 5 bytes and at least 62 pixels in 1 byte
+    private static final long MAX_BYTES_PER_PIXEL = 5;
+    private static final long MAX_PIXELS_PER_BYTE = 62;
+
+    // ==================================================================================
+    // ================================ COMPRESSION METHODS =============================
+    // ==================================================================================
+
+    /**
+     * Encode an image and wrap it with {@link #DEFAULT_CHUNK_SIZE} and {@link #DEFAULT_LEVEL}, using the common pool
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - The wrapped image
+     */
+    public static byte[] encode(Helper.Image image){
+        return encode(image, DEFAULT_CHUNK_SIZE, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Encode an image and wrap it, using the common pool
+     * @param image (Helper.Image) - Image to encode
+     * @param chunkSize (int) - Size of the uncompressed chunks
+     * @param level (int) - Deflate level, from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     * @return (byte[]) - The wrapped image
+     */
+    public static byte[] encode(Helper.Image image, int chunkSize, int level){
+        return encode(image, chunkSize, level, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encode an image and wrap it
+     * @param image (Helper.Image) - Image to encode
+     * @param chunkSize (int) - Size of the uncompressed chunks
+     * @param level (int) - Deflate level, from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     * @param executor (Executor) - Executor compressing the chunks
+     * @return (byte[]) - The wrapped image
+     */
+    public static byte[] encode(Helper.Image image, int chunkSize, int level, Executor executor){
+        assert image != null;
+        int[][] pixels = image.data();
+        var data = new ByteArrayOutputStream();
+        var encoder = QOIStreamEncoder.data(data, pixels[0].length, pixels.length);
+        for (int[] row : pixels) {
+            encoder.pushRow(row);
+        }
+        encoder.finish();
+        return wrap(QOIEncoder.qoiHeader(image), data.toByteArray(), chunkSize, level, executor);
+    }
+
+    /**
+     * Wrap an existing "Quite Ok Image" file with {@link #DEFAULT_CHUNK_SIZE} and {@link #DEFAULT_LEVEL}, using the common pool
+     * @param qoiFile (byte[]) - Content of the file
+     * @return (byte[]) - The wrapped image
+     */
+    public static byte[] wrap(byte[] qoiFile){
+        return wrap(qoiFile, DEFAULT_CHUNK_SIZE, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Wrap an existing "Quite Ok Image" file, using the common pool
+     * @param qoiFile (byte[]) - Content of the file
+     * @param chunkSize (int) - Size of the uncompressed chunks
+     * @param level (int) - Deflate level, from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     * @return (byte[]) - The wrapped image
+     */
+    public static byte[] wrap(byte[] qoiFile, int chunkSize, int level){
+        assert qoiFile != null;
+        assert qoiFile.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        byte[] header = ArrayUtils.extract(qoiFile, 0, QOISpecification.HEADER_SIZE);
+        byte[] data = ArrayUtils.extract(qoiFile, QOISpecification.HEADER_SIZE,
+                qoiFile.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length);
+        return wrap(header, data, chunkSize, level, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Compress the data section of an image chunk by chunk, in parallel
+     * @param header (byte[]) - "Quite Ok Image" header
+     * @param data (byte[]) - Data section of the image
+     * @param chunkSize (int) - Size of the uncompressed chunks
+     * @param level (int) - Deflate level
+     * @param executor (Executor) - Executor compressing the chunks
+     * @return (byte[]) - The wrapped image
+     */
+    public static byte[] wrap(byte[] header, byte[] data, int chunkSize, int level, Executor executor){
+        assert header != null && header.length == QOISpecification.HEADER_SIZE;
+        assert data != null;
+        assert chunkSize > 0;
+        assert level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+        assert executor != null;
+
+        int count = (data.length + chunkSize - 1) / chunkSize;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<byte[]>[] chunks = new CompletableFuture[count];
+        for (int i = 0; i < count; i++) {
+            int start = i * chunkSize;
+            int length = Math.min(chunkSize, data.length - start);
+            chunks[i] = CompletableFuture.supplyAsync(() -> deflate(data, start, length, level), executor);
+        }
+
+        byte[] index = new byte[count * INDEX_ENTRY_SIZE];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            int rawSize = Math.min(chunkSize, data.length - i * chunkSize);
+            int compressedSize = chunks[i].join().length;
+            System.arraycopy(ArrayUtils.concat(
+                    ArrayUtils.fromInt(offset),
+                    ArrayUtils.fromInt(rawSize),
+                    ArrayUtils.fromInt(compressedSize)
+            ), 0, index, i * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+            offset += compressedSize;
+        }
+
+        var output = new ByteArrayOutputStream(HEADER_SIZE + index.length + offset);
+        output.writeBytes(MAGIC);
+        output.writeBytes(header);
+        output.writeBytes(ArrayUtils.fromInt(chunkSize));
+        output.writeBytes(ArrayUtils.fromInt(count));
+        output.writeBytes(index);
+        for (var chunk : chunks) {
+            output.writeBytes(chunk.join());
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, int start, int length, int level){
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, start, length);
+            deflater.finish();
+            var output = new ByteArrayOutputStream(Math.max(64, length / 2));
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // ==================================================================================
+    // =============================== DECOMPRESSION METHODS ============================
+    // ==================================================================================
+
+    /**
+     * Decode a wrapped image, using the common pool
+     * @param content (byte[]) - The wrapped image
+     * @return (Helper.Image) - The decoded image
+     */
+    public static Helper.Image decode(byte[] content){
+        return decode(content, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decode a wrapped image. The chunks are inflated in parallel, a few chunks ahead
+     * of the decoder, and streamed into it. The image and the chunks in flight are
+     * reserved on the {@link MemoryBudget#global() global memory budget}
+     * @param content (byte[]) - The wrapped image
+     * @param executor (Executor) - Executor inflating the chunks
+     * @return (Helper.Image) - The decoded image
+     */
+    @SuppressWarnings("try")
+    public static Helper.Image decode(byte[] content, Executor executor){
+        long size = checkIndex(content);
+        int[] header = header(content);
+        long bytes = MemoryBudget.imageBytes(header[0], header[1]) + inflatedBytes(content, size);
+        try (var ignored = MemoryBudget.global().reserve(bytes)) {
+            var decoder = decoder(content, executor);
+            int[][] pixels = new int[decoder.height()][decoder.width()];
+            for (int[] row : pixels) {
+                decoder.nextRow(row);
+            }
+            return new Helper.Image(pixels, decoder.channels(), decoder.colorSpace());
+        }
+    }
+
+    /**
+     * Create a decoder over a wrapped image. The chunks are inflated in parallel while the
+     * pixels are read. The index is checked first, the memory of the pixels is left to the caller
+     * @param content (byte[]) - The wrapped image
+     * @param executor (Executor) - Executor inflating the chunks
+     * @return (QOIStreamDecoder) - Decoder positioned on the first pixel
+     */
+    public static QOIStreamDecoder decoder(byte[] content, Executor executor){
+        assert executor != null;
+        checkIndex(content);
+        int[] header = header(content);
+        return new QOIStreamDecoder(new ChunkInputStream(content, count(content), executor),
+                header[0], header[1], (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Restore the original "Quite Ok Image" file from a wrapped image. The file and the chunks
+     * in flight are reserved on the {@link MemoryBudget#global() global memory budget}
+     * @param content (byte[]) - The wrapped image
+     * @return (byte[]) - Content of the "Quite Ok Image" file
+     */
+    @SuppressWarnings("try")
+    public static byte[] unwrap(byte[] content){
+        long size = checkIndex(content);
+        long length = QOISpecification.HEADER_SIZE + size + QOISpecification.QOI_EOF.length;
+        try (var ignored = MemoryBudget.global().reserve(length + inflatedBytes(content, size))) {
+            // the checked index gives the exact size of the file
+            byte[] file = new byte[(int) length];
+            System.arraycopy(content, MAGIC.length, file, 0, QOISpecification.HEADER_SIZE);
+            try (var input = new ChunkInputStream(content, count(content), ForkJoinPool.commonPool())) {
+                input.readNBytes(file, QOISpecification.HEADER_SIZE, (int) size);
+            } catch (IOException e){
+                Helper.fail("An error occurred while inflating the image : %s", e.getMessage());
+            }
+            System.arraycopy(QOISpecification.QOI_EOF, 0, file, (int) (length - QOISpecification.QOI_EOF.length), QOISpecification.QOI_EOF.length);
+            return file;
+        }
+    }
+
+    /**
+     * Check the wrapper header and the chunk index before anything is allocated from them : every chunk
+     * but the last one holds exactly the chunk size, the last one at most the chunk size, and the data
+     * section they add up to can encode the pixels announced by the "Quite Ok Image" header
+     * @param content (byte[]) - The wrapped image
+     * @return (long) - Size of the inflated data section
+     */
+    private static long checkIndex(byte[] content){
+        assert content != null;
+        if (content.length < HEADER_SIZE || !ArrayUtils.equals(ArrayUtils.extract(content, 0, MAGIC.length), MAGIC))
+            Helper.fail("Not a deflated \"Quite Ok Image\"");
+        int[] header = header(content);
+        int chunkSize = intAt(content, HEADER_SIZE - 8);
+        int count = count(content);
+        if (chunkSize <= 0 || count <= 0 || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > content.length)
+            Helper.fail("Corrupted wrapper header : %d chunks of %d bytes", count, chunkSize);
+        long dataStart = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+        long size = 0;
+        for (int i = 0; i < count; i++) {
+            int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            long start = dataStart + intAt(content, entry);
+            int rawSize = intAt(content, entry + 4);
+            int compressedSize = intAt(content, entry + 8);
+            boolean last = i == count - 1;
+            if (start < dataStart || compressedSize < 0 || start + compressedSize > content.length
+                    || rawSize <= 0 || rawSize > chunkSize || (!last && rawSize != chunkSize))
+                Helper.fail("Corrupted chunk index entry %d", i);
+            size += rawSize;
+        }
+        long pixels = (long) header[0] * header[1];
+        if (size > MAX_BYTES_PER_PIXEL * pixels || pixels > MAX_PIXELS_PER_BYTE * size)
+            Helper.fail("%d bytes of data cannot encode %d x %d pixels", size, header[0], header[1]);
+        return size;
+    }
+
+    /**
+     * Inflated chunks held at once : the ones in flight and the one being read
+     */
+    private static long inflatedBytes(byte[] content, long size){
+        return Math.min(size, (window() + 1L) * intAt(content, HEADER_SIZE - 8));
+    }
+
+    private static int window(){
+        return Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static int[] header(byte[] content){
+        return QOIDecoder.decodeHeader(ArrayUtils.extract(content, MAGIC.length, QOISpecification.HEADER_SIZE));
+    }
+
+    private static int count(byte[] content){
+        return intAt(content, HEADER_SIZE - 4);
+    }
+
+    private static int intAt(byte[] content, int position){
+        return ArrayUtils.toInt(ArrayUtils.extract(content, position, 4));
+    }
+
+    private static byte[] inflate(byte[] content, int start, int length, int rawSize){
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(content, start, length);
+            byte[] output = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int read = inflater.inflate(output, n, rawSize - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += read;
+            }
+            if (n != rawSize)
+                Helper.fail("Corrupted deflated chunk, expected %d bytes but got %d", rawSize, n);
+            return output;
+        } catch (DataFormatException e){
+            return Helper.fail("Corrupted deflated chunk : %s", e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Concatenation of the inflated chunks. The next chunks are inflated in the background
+     * while the current one is read
+     */
+    private static final class ChunkInputStream extends InputStream {
+
+        private final byte[] content;
+        private final int count;
+        private final int dataStart;
+        private final Executor executor;
+        private final int window;
+        private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        private int submitted = 0;
+
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        private ChunkInputStream(byte[] content, int count, Executor executor){
+            this.content = content;
+            this.count = count;
+            this.dataStart = HEADER_SIZE + count * INDEX_ENTRY_SIZE;
+            this.executor = executor;
+            this.window = window();
+            while (submitted < Math.min(window, count)) {
+                submit();
+            }
+        }
+
+        // the index has been checked by checkIndex
+        private void submit(){
+            int entry = HEADER_SIZE + submitted * INDEX_ENTRY_SIZE;
+            int start = dataStart + intAt(content, entry);
+            int rawSize = intAt(content, entry + 4);
+            int compressedSize = intAt(content, entry + 8);
+            pending.add(CompletableFuture.supplyAsync(() -> inflate(content, start, compressedSize, rawSize), executor));
+            submitted++;
+        }
+
+        private boolean advance(){
+            while (position == current.length) {
+                if (pending.isEmpty())
+                    return false;
+                current = pending.poll().join();
+                position = 0;
+                if (submitted < count) {
+                    submit();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read(){
+            return advance() ? current[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len){
+            if (len == 0)
+                return 0;
+            if (!advance())
+                return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+}
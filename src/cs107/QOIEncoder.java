@@ -1,7 +1,19 @@
 package cs107;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
 public final class QOIEncoder {
 
+    // rows sampled to choose the loop of the encoder
+    private static final int SAMPLED_ROWS = 16;
+    // share of pixels equal to their left neighbour of a flat image
+    private static final double FLAT_RATIO = 0.9;
+    // colors of a palette image, as many as the entries of the index table
+    private static final int PALETTE_SIZE = 64;
+
     private QOIEncoder() {
     }
 
@@ -171,11 +183,216 @@ public final class QOIEncoder {
     }
 
     public static byte[] qoiFile(Helper.Image image) {
+        return qoiFile(image, false);
+    }
+
+    /**
+     * Encode an image as a "Quite Ok Image" file
+     * @param image (Helper.Image) - Image to encode
+     * @param detectAlpha (boolean) - If true and every pixel is opaque, the file is
+     *                    written with {@link QOISpecification#RGB} channels
+     * @return (byte[]) - Content of the file
+     */
+    public static byte[] qoiFile(Helper.Image image, boolean detectAlpha) {
+        return qoiFile(image, detectAlpha, MemoryBudget.global());
+    }
+
+    /**
+     * Same as {@link #qoiFile(Helper.Image, boolean)}, reserving the memory on the given budget
+     * @param memory (MemoryBudget) - Budget of the buffer of the file
+     */
+    @SuppressWarnings("try")
+    static byte[] qoiFile(Helper.Image image, boolean detectAlpha, MemoryBudget memory) {
+        assert image != null && memory != null;
+        int[][] data = image.data();
+        try (var ignored = memory.reserve(qoiFileBytes(data[0].length, data.length, image.channels()))) {
+            var output = new ByteArrayOutputStream(QOISpecification.HEADER_SIZE + data[0].length * data.length + QOISpecification.QOI_EOF.length);
+            qoiFile(image, detectAlpha, output);
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Memory used while encoding a file into an array, the size of the largest file, where every
+     * pixel takes a tag and all its samples. The buffer starts at a byte per pixel and the returned
+     * copy is the size of the file : together they stay below it unless the image barely compresses
+     */
+    static long qoiFileBytes(long width, long height, int channels){
+        return QOISpecification.HEADER_SIZE + width * height * (channels + 1L) + QOISpecification.QOI_EOF.length + 16;
+    }
 
-        byte[] header = qoiHeader(image);
-        byte[] content = encodeData(ArrayUtils.imageToChannels(image.data()));
+    /**
+     * Encode an image as a "Quite Ok Image" file written to a stream
+     * @param image (Helper.Image) - Image to encode
+     * @param detectAlpha (boolean) - If true and every pixel is opaque, the file is
+     *                    written with {@link QOISpecification#RGB} channels
+     * @param output (OutputStream) - Where the file is written, not closed
+     */
+    static void qoiFile(Helper.Image image, boolean detectAlpha, OutputStream output) {
+        assert image != null && output != null;
+        assert image.channels() == QOISpecification.RGB || image.channels() == QOISpecification.RGBA;
+        assert image.color_space() == QOISpecification.sRGB || image.color_space() == QOISpecification.ALL;
+
+        int[][] data = image.data();
+        int width = data[0].length;
+        int height = data.length;
+        // Opaque images never need the alpha, the specialized loop gives the same chunks
+        boolean opaque = isOpaque(data);
+        byte channels = detectAlpha && opaque ? QOISpecification.RGB : image.channels();
+
+        var encoder = opaque
+                ? QOIStreamEncoder.opaque(output, width, height, channels, image.color_space())
+                : new QOIStreamEncoder(output, width, height, channels, image.color_space());
+        encoder.kernel(classify(width, height, opaque, y -> data[y]));
+        for (int[] row : data) {
+            encoder.pushRow(row);
+        }
+        encoder.finish();
+    }
 
-        return ArrayUtils.concat(header, content, QOISpecification.QOI_EOF);
+    /**
+     * Encode an approximation of the given image into the "Quite Ok Image" format
+     * @param image (Helper.Image) - Image to encode
+     * @param tolerance (int[]) - Maximal error of every channel, see
+     *                  {@link QOIStreamEncoder#nearLossless(java.io.OutputStream, int, int, byte, byte, int[])}
+     * @return (byte[]) - Content of the file
+     */
+    @SuppressWarnings("try")
+    public static byte[] qoiFile(Helper.Image image, int[] tolerance) {
+        assert image != null;
+        int[][] data = image.data();
+        int width = data[0].length;
+        int height = data.length;
+        try (var ignored = MemoryBudget.global().reserve(qoiFileBytes(width, height, image.channels()))) {
+            var output = new ByteArrayOutputStream(QOISpecification.HEADER_SIZE + width * height + QOISpecification.QOI_EOF.length);
+            var encoder = QOIStreamEncoder.nearLossless(output, width, height, image.channels(), image.color_space(), tolerance);
+            for (int[] row : data) {
+                encoder.pushRow(row);
+            }
+            encoder.finish();
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Encode the given image, or view of an image, into the "Quite Ok Image" format.
+     * The rows are read in place, crops and tiles are never copied
+     * @param image (FlatImage) - Image to encode
+     * @return (byte[]) - Content of the file
+     */
+    public static byte[] qoiFile(FlatImage image) {
+        return qoiFile(image, false);
+    }
+
+    /**
+     * Same as {@link #qoiFile(Helper.Image, boolean)} for an image stored in a flat array
+     * @param image (FlatImage) - Image to encode
+     * @param detectAlpha (boolean) - If true and every pixel is opaque, the file is
+     *                    written with {@link QOISpecification#RGB} channels
+     * @return (byte[]) - Content of the file
+     */
+    @SuppressWarnings("try")
+    public static byte[] qoiFile(FlatImage image, boolean detectAlpha) {
+        assert image != null;
+        int width = image.width();
+        int height = image.height();
+        boolean opaque = image.isOpaque();
+        byte channels = detectAlpha && opaque ? QOISpecification.RGB : image.channels();
+
+        try (var ignored = MemoryBudget.global().reserve(qoiFileBytes(width, height, channels))) {
+            var output = new ByteArrayOutputStream(QOISpecification.HEADER_SIZE + width * height + QOISpecification.QOI_EOF.length);
+            var encoder = opaque
+                    ? QOIStreamEncoder.opaque(output, width, height, channels, image.colorSpace())
+                    : new QOIStreamEncoder(output, width, height, channels, image.colorSpace());
+            int[] pixels = image.pixels();
+            // the sampled rows are read in place, through the stride
+            encoder.kernel(classify(width, height, opaque, y -> pixels, y -> image.index(0, y)));
+            for (int y = 0; y < height; y++) {
+                encoder.push(pixels, image.offset() + y * image.stride(), width);
+            }
+            encoder.finish();
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Scan the alpha plane of an image
+     * @param data (int[][]) - ARGB stored pixels
+     * @return (boolean) - true if every pixel has an alpha of 255
+     */
+    public static boolean isOpaque(int[][] data) {
+        assert data != null;
+        for (int[] row : data) {
+            int and = 0xFF000000;
+            for (int pixel : row) {
+                and &= pixel;
+            }
+            if (and != 0xFF000000) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Choose the loop of the encoder from a sample of evenly spaced rows : mostly runs, gray
+     * pixels or fewer colors than the index table. Every loop gives the same chunks, a wrong
+     * guess on the rows that are not sampled only costs speed
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param opaque (boolean) - true if the pixels are encoded as opaque
+     * @param rows (IntFunction) - ARGB pixels of a row
+     * @return (QOIStreamEncoder.Kernel) - The loop for this image
+     */
+    static QOIStreamEncoder.Kernel classify(int width, int height, boolean opaque, IntFunction<int[]> rows) {
+        return classify(width, height, opaque, rows, y -> 0);
+    }
+
+    /**
+     * @see #classify(int, int, boolean, IntFunction)
+     * @param offsets (IntUnaryOperator) - Position of the first pixel of the row {@code y} in its array
+     */
+    static QOIStreamEncoder.Kernel classify(int width, int height, boolean opaque, IntFunction<int[]> rows, IntUnaryOperator offsets) {
+        int mask = opaque ? 0xFF000000 : 0;
+        int step = Math.max(1, height / SAMPLED_ROWS);
+        long pixels = 0;
+        long repeated = 0;
+        boolean gray = opaque;
+        // open addressing set of the colors, until there are more than the index table holds
+        int[] colors = new int[4 * PALETTE_SIZE];
+        boolean[] used = new boolean[colors.length];
+        int distinct = 0;
+        for (int y = 0; y < height; y += step) {
+            int[] row = rows.apply(y);
+            int from = offsets.applyAsInt(y);
+            int previous = ~(row[from] | mask);
+            for (int x = from, end = from + width; x < end; x++) {
+                int pixel = row[x] | mask;
+                if (pixel == previous) {
+                    repeated++;
+                    continue;
+                }
+                previous = pixel;
+                gray &= ((pixel >> 8 ^ pixel) & 0xFFFF) == 0;
+                if (distinct <= PALETTE_SIZE) {
+                    int slot = (pixel * 0x9E3779B9) >>> 24;
+                    while (used[slot] && colors[slot] != pixel) {
+                        slot = (slot + 1) % colors.length;
+                    }
+                    if (!used[slot]) {
+                        used[slot] = true;
+                        colors[slot] = pixel;
+                        distinct++;
+                    }
+                }
+            }
+            pixels += width;
+        }
+        if (repeated >= FLAT_RATIO * pixels)
+            return QOIStreamEncoder.Kernel.FLAT;
+        if (gray)
+            return QOIStreamEncoder.Kernel.GRAYSCALE;
+        if (distinct <= PALETTE_SIZE)
+            return QOIStreamEncoder.Kernel.PALETTE;
+        return QOIStreamEncoder.Kernel.GENERAL;
     }
 
 }
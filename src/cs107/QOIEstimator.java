@@ -0,0 +1,238 @@
+package cs107;
+
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Estimates the size of the "Quite Ok Image" file of an image without encoding all of it.
+ * <p>
+ * The rows are grouped in bands and a band is drawn at random in each of a few evenly spaced
+ * strata. The sampled bands are encoded with {@link QOIStreamEncoder}, each from a fresh state,
+ * and the size of the whole file is extrapolated with a ratio estimator together with a 95 %
+ * confidence interval and the share of every chunk type.
+ */
+public final class QOIEstimator {
+
+    /**
+     * Default share of the rows that are encoded
+     */
+    public static final double DEFAULT_FRACTION = 0.05;
+
+    /**
+     * Default number of consecutive rows of a band
+     */
+    public static final int DEFAULT_BAND_ROWS = 8;
+
+    private static final int MIN_BANDS = 8;
+
+    // two sided 95 % quantile of the normal distribution
+    private static final double Z_95 = 1.96;
+
+    private static final long SEED = 0x5eed_9017L;
+
+    private QOIEstimator(){}
+
+    /**
+     * Chunk types of the format
+     */
+    public enum Op { RGB, RGBA, INDEX, DIFF, LUMA, RUN }
+
+    /**
+     * Estimated size of a file
+     * @param pixels (long) - Number of pixels of the image
+     * @param sampledPixels (long) - Number of pixels that were encoded
+     * @param bytes (double) - Estimated size of the file, header and EOF included
+     * @param margin (double) - Half width of the 95 % confidence interval of the size, 0 when exact
+     * @param opMix (Map) - Share of every chunk type among the chunks of the data
+     */
+    public record Estimate(long pixels, long sampledPixels, double bytes, double margin, Map<Op, Double> opMix){
+
+        public double low(){
+            return Math.max(QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length, bytes - margin);
+        }
+
+        public double high(){
+            return bytes + margin;
+        }
+
+        /**
+         * @param png (long) - Size of the "PNG" file of the image
+         * @return (double) - {@link Main#ratio(int, int)} of the estimated size
+         */
+        public double ratio(long png){
+            long qoi = Math.round(bytes);
+            while (png > Integer.MAX_VALUE || qoi > Integer.MAX_VALUE) {
+                png >>= 1;
+                qoi >>= 1;
+            }
+            return Main.ratio((int) png, (int) Math.max(qoi, 1));
+        }
+
+        /**
+         * @param size (long) - Size of another file of the image, a "PNG" for instance
+         * @return (boolean) - true if the file is smaller than {@code size} with 95 % confidence
+         */
+        public boolean smallerThan(long size){
+            return high() < size;
+        }
+    }
+
+    // ==================================================================================
+    // ================================= ESTIMATION API =================================
+    // ==================================================================================
+
+    public static Estimate estimate(Helper.Image image){
+        return estimate(image, DEFAULT_FRACTION, DEFAULT_BAND_ROWS);
+    }
+
+    /**
+     * Estimate the size of {@link QOIEncoder#qoiFile(Helper.Image)}
+     * @param image (Helper.Image) - Image to estimate
+     * @param fraction (double) - Share of the rows to encode, in ]0, 1]
+     * @param bandRows (int) - Number of consecutive rows of a band
+     * @return (Estimate) - The estimate
+     */
+    public static Estimate estimate(Helper.Image image, double fraction, int bandRows){
+        assert image != null;
+        int[][] data = image.data();
+        return estimate(data[0].length, data.length, fraction, bandRows, (encoder, y) -> encoder.pushRow(data[y]));
+    }
+
+    /**
+     * Estimate the size of {@link QOIEncoder#qoiFile(FlatImage)}
+     * @param image (FlatImage) - Image to estimate
+     * @param fraction (double) - Share of the rows to encode, in ]0, 1]
+     * @param bandRows (int) - Number of consecutive rows of a band
+     * @return (Estimate) - The estimate
+     */
+    public static Estimate estimate(FlatImage image, double fraction, int bandRows){
+        assert image != null;
+        return estimate(image.width(), image.height(), fraction, bandRows,
+                (encoder, y) -> encoder.push(image.pixels(), image.offset() + y * image.stride(), image.width()));
+    }
+
+    // ==================================================================================
+    // ================================= ESTIMATION CORE ================================
+    // ==================================================================================
+
+    private static Estimate estimate(int width, int height, double fraction, int bandRows, ObjIntConsumer<QOIStreamEncoder> rows){
+        assert fraction > 0 && fraction <= 1;
+        assert bandRows > 0;
+        long pixels = (long) width * height;
+        int bands = (height + bandRows - 1) / bandRows;
+        int samples = (int) Math.min(bands, Math.max(MIN_BANDS, Math.ceil(fraction * height / bandRows)));
+        var counter = new ChunkCounter();
+
+        if (samples == bands) {
+            // the sample would be the whole image
+            var encoder = QOIStreamEncoder.data(counter, width, height);
+            for (int y = 0; y < height; y++) {
+                rows.accept(encoder, y);
+            }
+            encoder.finish();
+            return new Estimate(pixels, pixels, overhead() + counter.bytes, 0, counter.mix());
+        }
+
+        var random = new SplittableRandom(SEED);
+        long[] sampleBytes = new long[samples];
+        long[] samplePixels = new long[samples];
+        long totalBytes = 0;
+        long totalPixels = 0;
+        for (int i = 0; i < samples; i++) {
+            // one band drawn in each stratum of consecutive bands
+            int first = (int) ((long) bands * i / samples);
+            int last = (int) ((long) bands * (i + 1) / samples);
+            int band = first + random.nextInt(last - first);
+            int top = band * bandRows;
+            int rowsInBand = Math.min(bandRows, height - top);
+
+            long before = counter.bytes;
+            var encoder = QOIStreamEncoder.data(counter, width, rowsInBand);
+            for (int y = top; y < top + rowsInBand; y++) {
+                rows.accept(encoder, y);
+            }
+            encoder.finish();
+            sampleBytes[i] = counter.bytes - before;
+            samplePixels[i] = (long) width * rowsInBand;
+            totalBytes += sampleBytes[i];
+            totalPixels += samplePixels[i];
+        }
+
+        // ratio estimator of the bytes per pixel and its standard error
+        double perPixel = (double) totalBytes / totalPixels;
+        double residuals = 0;
+        for (int i = 0; i < samples; i++) {
+            double residual = sampleBytes[i] - perPixel * samplePixels[i];
+            residuals += residual * residual;
+        }
+        double meanPixels = (double) totalPixels / samples;
+        double correction = 1 - (double) samples / bands;
+        double error = Math.sqrt(correction * residuals / (samples - 1) / samples) / meanPixels;
+        return new Estimate(pixels, totalPixels, overhead() + perPixel * pixels, Z_95 * error * pixels, counter.mix());
+    }
+
+    private static int overhead(){
+        return QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+    }
+
+    /**
+     * Discards the chunks written to it and only counts their bytes and types
+     */
+    private static final class ChunkCounter extends OutputStream {
+
+        private final long[] ops = new long[Op.values().length];
+        private long bytes = 0;
+        // bytes left of the current chunk
+        private int pending = 0;
+
+        @Override
+        public void write(int b){
+            bytes++;
+            if (pending > 0) {
+                pending--;
+                return;
+            }
+            b &= 0xFF;
+            Op op;
+            if (b == (QOISpecification.QOI_OP_RGB_TAG & 0xFF)) {
+                op = Op.RGB;
+                pending = 3;
+            } else if (b == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF)) {
+                op = Op.RGBA;
+                pending = 4;
+            } else {
+                op = switch (b >> 6) {
+                    case 0 -> Op.INDEX;
+                    case 1 -> Op.DIFF;
+                    case 2 -> Op.LUMA;
+                    default -> Op.RUN;
+                };
+                pending = op == Op.LUMA ? 1 : 0;
+            }
+            ops[op.ordinal()]++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len){
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        private Map<Op, Double> mix(){
+            long chunks = 0;
+            for (long count : ops) {
+                chunks += count;
+            }
+            var mix = new EnumMap<Op, Double>(Op.class);
+            for (var op : Op.values()) {
+                mix.put(op, chunks == 0 ? 0 : (double) ops[op.ordinal()] / chunks);
+            }
+            return mix;
+        }
+    }
+
+}
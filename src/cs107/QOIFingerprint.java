@@ -0,0 +1,157 @@
+package cs107;
+
+/**
+ * 128 bits fingerprint of the content of an image : its dimensions, channels, color space and
+ * pixels. Two images with the same fingerprint are taken as equal.
+ * <p>
+ * The hash is the block function of MurmurHash3 (x64, 128 bits) applied to the header fields
+ * and then to the ARGB pixels, four per block. It is not cryptographic and is computed in one
+ * streaming pass, without copying the pixels.
+ * @param high (long) - First 64 bits
+ * @param low (long) - Last 64 bits
+ */
+public record QOIFingerprint(long high, long low) {
+
+    /**
+     * Fingerprint of an image stored as rows
+     * @param image (Helper.Image) - Image to fingerprint
+     * @param variant (int) - Distinguishes the results of different encoding options
+     * @return (QOIFingerprint) - The fingerprint
+     */
+    public static QOIFingerprint of(Helper.Image image, int variant){
+        assert image != null;
+        int[][] data = image.data();
+        var hasher = new Hasher(data[0].length, data.length, image.channels(), image.color_space(), variant);
+        for (int[] row : data) {
+            hasher.update(row, 0, row.length);
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * Fingerprint of an image stored in a flat array, or of a view of it
+     * @param image (FlatImage) - Image to fingerprint
+     * @param variant (int) - Distinguishes the results of different encoding options
+     * @return (QOIFingerprint) - The fingerprint
+     */
+    public static QOIFingerprint of(FlatImage image, int variant){
+        assert image != null;
+        var hasher = new Hasher(image.width(), image.height(), image.channels(), image.colorSpace(), variant);
+        for (int y = 0; y < image.height(); y++) {
+            hasher.update(image.pixels(), image.offset() + y * image.stride(), image.width());
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * @param hex (String) - 32 hexadecimal digits, as given by {@link #toString()}
+     * @return (QOIFingerprint) - The fingerprint
+     */
+    public static QOIFingerprint parse(String hex){
+        assert hex != null && hex.length() == 32;
+        return new QOIFingerprint(Long.parseUnsignedLong(hex, 0, 16, 16), Long.parseUnsignedLong(hex, 16, 32, 16));
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%016x%016x", high, low);
+    }
+
+    /**
+     * Computes a fingerprint from pixels given in order, row after row
+     */
+    public static final class Hasher {
+
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432e4f2f0fL;
+
+        private long h1;
+        private long h2;
+        private long length = 0;
+        // pixels of the block being filled
+        private final int[] block = new int[4];
+        private int filled = 0;
+
+        /**
+         * @param width (int) - Width of the image
+         * @param height (int) - Height of the image
+         * @param channels (byte) - Number of channels
+         * @param colorSpace (byte) - Color space
+         * @param variant (int) - Distinguishes the results of different encoding options
+         */
+        public Hasher(int width, int height, byte channels, byte colorSpace, int variant){
+            h1 = h2 = 0x716f6966L;
+            mix((long) width << 32 | height & 0xFFFFFFFFL, (long) channels << 40 | (long) (colorSpace & 0xFF) << 32 | variant & 0xFFFFFFFFL);
+        }
+
+        public void update(int pixel){
+            block[filled++] = pixel;
+            if (filled == block.length) {
+                mix(pack(block[0], block[1]), pack(block[2], block[3]));
+                filled = 0;
+            }
+        }
+
+        public void update(int[] pixels, int offset, int count){
+            assert pixels != null;
+            assert offset >= 0 && count >= 0 && offset + count <= pixels.length;
+            int i = offset;
+            int end = offset + count;
+            while (filled != 0 && i < end) {
+                update(pixels[i++]);
+            }
+            for (; i + 4 <= end; i += 4) {
+                mix(pack(pixels[i], pixels[i + 1]), pack(pixels[i + 2], pixels[i + 3]));
+            }
+            while (i < end) {
+                update(pixels[i++]);
+            }
+        }
+
+        public QOIFingerprint finish(){
+            if (filled != 0) {
+                for (int i = filled; i < block.length; i++) {
+                    block[i] = 0;
+                }
+                long k1 = pack(block[0], block[1]);
+                long k2 = pack(block[2], block[3]);
+                h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+                h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+                length += filled * 4L;
+            }
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new QOIFingerprint(h1, h2);
+        }
+
+        private void mix(long k1, long k2){
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+            length += 16;
+        }
+
+        private static long pack(int first, int second){
+            return (long) first << 32 | second & 0xFFFFFFFFL;
+        }
+
+        private static long fmix(long k){
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+}
@@ -0,0 +1,367 @@
+package cs107;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * "Quite Ok Image" plugin of {@link javax.imageio.ImageIO}.
+ * <p>
+ * The providers are found by {@link javax.imageio.ImageIO} through {@code META-INF/services} when
+ * this code is packaged as a jar, or registered with {@link #register()}. The reader decodes the
+ * header alone for the dimensions, and the pixels straight into the data buffer of the usual
+ * image types. Source regions and subsampling are applied while decoding : the rows and columns
+ * outside of them are decoded but not stored, and the rows after the region are not decoded.
+ * The writer encodes the rows read from the data buffer, with the same regions and subsampling.
+ */
+public final class QOIImageIO {
+
+    private static final String VENDOR = "cs107";
+    private static final String VERSION = "1.0";
+    private static final String[] NAMES = {"qoi", "QOI"};
+    private static final String[] SUFFIXES = {"qoi"};
+    private static final String[] MIME_TYPES = {"image/qoi"};
+
+    private QOIImageIO(){}
+
+    /**
+     * Register the reader and the writer in the default registry of {@link javax.imageio.ImageIO},
+     * replacing any previously registered instance
+     */
+    public static void register(){
+        var registry = IIORegistry.getDefaultInstance();
+        registry.registerServiceProvider(new ReaderSpi());
+        registry.registerServiceProvider(new WriterSpi());
+    }
+
+    // ==================================================================================
+    // ===================================== READER =====================================
+    // ==================================================================================
+
+    public static final class ReaderSpi extends ImageReaderSpi {
+
+        public ReaderSpi(){
+            super(VENDOR, VERSION, NAMES, SUFFIXES, MIME_TYPES, Reader.class.getName(),
+                    new Class<?>[]{ImageInputStream.class}, new String[]{WriterSpi.class.getName()},
+                    false, null, null, null, null, false, null, null, null, null);
+        }
+
+        @Override
+        public boolean canDecodeInput(Object source) throws IOException {
+            if (!(source instanceof ImageInputStream stream))
+                return false;
+            byte[] magic = new byte[QOISpecification.QOI_MAGIC.length];
+            stream.mark();
+            try {
+                stream.readFully(magic);
+            } catch (IOException e){
+                return false;
+            } finally {
+                stream.reset();
+            }
+            return ArrayUtils.equals(magic, QOISpecification.QOI_MAGIC);
+        }
+
+        @Override
+        public ImageReader createReaderInstance(Object extension){
+            return new Reader(this);
+        }
+
+        @Override
+        public String getDescription(Locale locale){
+            return "Quite Ok Image reader";
+        }
+    }
+
+    public static final class Reader extends ImageReader {
+
+        private ImageInputStream stream;
+        private long start;
+        // width, height, channels, color space, null until read
+        private int[] header;
+
+        private Reader(ReaderSpi provider){
+            super(provider);
+        }
+
+        @Override
+        public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata){
+            super.setInput(input, seekForwardOnly, ignoreMetadata);
+            stream = (ImageInputStream) input;
+            header = null;
+        }
+
+        @Override
+        public void reset(){
+            super.reset();
+            stream = null;
+            header = null;
+        }
+
+        @Override
+        public int getNumImages(boolean allowSearch){
+            return 1;
+        }
+
+        @Override
+        public int getWidth(int imageIndex) throws IOException {
+            return header(imageIndex)[0];
+        }
+
+        @Override
+        public int getHeight(int imageIndex) throws IOException {
+            return header(imageIndex)[1];
+        }
+
+        @Override
+        public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
+            boolean alpha = header(imageIndex)[2] == QOISpecification.RGBA;
+            return List.of(ImageTypeSpecifier.createFromBufferedImageType(
+                    alpha ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR)).iterator();
+        }
+
+        @Override
+        public IIOMetadata getStreamMetadata(){
+            return null;
+        }
+
+        @Override
+        public IIOMetadata getImageMetadata(int imageIndex){
+            return null;
+        }
+
+        @Override
+        public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
+            int[] header = header(imageIndex);
+            int width = header[0];
+            int height = header[1];
+            BufferedImage image = getDestination(param, getImageTypes(imageIndex), width, height);
+            var source = new Rectangle();
+            var destination = new Rectangle();
+            computeRegions(param, width, height, image, source, destination);
+            int periodX = param == null ? 1 : param.getSourceXSubsampling();
+            int periodY = param == null ? 1 : param.getSourceYSubsampling();
+
+            stream.seek(start + QOISpecification.HEADER_SIZE);
+            var decoder = new QOIStreamDecoder(input(stream), width, height, (byte) header[2], (byte) header[3]);
+            clearAbortRequest();
+            processImageStarted(imageIndex);
+            try {
+                int[] row = new int[width];
+                int[] selected = new int[destination.width];
+                decoder.skip((long) source.y * width);
+                int last = source.y + (destination.height - 1) * periodY;
+                for (int y = source.y; y <= last; y++) {
+                    if ((y - source.y) % periodY != 0) {
+                        decoder.skip(width);
+                        continue;
+                    }
+                    decoder.nextRow(row);
+                    for (int i = 0, x = source.x; i < selected.length; i++, x += periodX) {
+                        selected[i] = row[x];
+                    }
+                    int line = (y - source.y) / periodY;
+                    QOITranscoder.writeRow(image, destination.x, destination.y + line, selected, selected.length);
+                    processImageProgress(100f * (line + 1) / destination.height);
+                    if (abortRequested()) {
+                        processReadAborted();
+                        return image;
+                    }
+                }
+            } catch (RuntimeException e){
+                // Helper.fail reports malformed data
+                throw new IIOException(e.getMessage(), e);
+            }
+            processImageComplete();
+            return image;
+        }
+
+        private int[] header(int imageIndex) throws IOException {
+            if (imageIndex != 0)
+                throw new IndexOutOfBoundsException("A \"Quite Ok Image\" holds a single image");
+            if (stream == null)
+                throw new IllegalStateException("No input");
+            if (header == null) {
+                start = stream.getStreamPosition();
+                byte[] bytes = new byte[QOISpecification.HEADER_SIZE];
+                stream.readFully(bytes);
+                int channels = bytes[12];
+                int colorSpace = bytes[13];
+                if (!ArrayUtils.equals(ArrayUtils.extract(bytes, 0, 4), QOISpecification.QOI_MAGIC)
+                        || (channels != QOISpecification.RGB && channels != QOISpecification.RGBA)
+                        || (colorSpace != QOISpecification.sRGB && colorSpace != QOISpecification.ALL))
+                    throw new IIOException("Not a \"Quite Ok Image\" header");
+                header = QOIDecoder.decodeHeader(bytes);
+                if (header[0] <= 0 || header[1] <= 0)
+                    throw new IIOException("Invalid dimensions " + header[0] + " x " + header[1]);
+            }
+            return header;
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== WRITER =====================================
+    // ==================================================================================
+
+    public static final class WriterSpi extends ImageWriterSpi {
+
+        public WriterSpi(){
+            super(VENDOR, VERSION, NAMES, SUFFIXES, MIME_TYPES, Writer.class.getName(),
+                    new Class<?>[]{ImageOutputStream.class}, new String[]{ReaderSpi.class.getName()},
+                    false, null, null, null, null, false, null, null, null, null);
+        }
+
+        @Override
+        public boolean canEncodeImage(ImageTypeSpecifier type){
+            // any image is written through its ARGB pixels
+            return true;
+        }
+
+        @Override
+        public ImageWriter createWriterInstance(Object extension){
+            return new Writer(this);
+        }
+
+        @Override
+        public String getDescription(Locale locale){
+            return "Quite Ok Image writer";
+        }
+    }
+
+    public static final class Writer extends ImageWriter {
+
+        private Writer(WriterSpi provider){
+            super(provider);
+        }
+
+        @Override
+        public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param){
+            return null;
+        }
+
+        @Override
+        public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param){
+            return null;
+        }
+
+        @Override
+        public IIOMetadata convertStreamMetadata(IIOMetadata inData, ImageWriteParam param){
+            return null;
+        }
+
+        @Override
+        public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType, ImageWriteParam param){
+            return null;
+        }
+
+        @Override
+        public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+            if (!(getOutput() instanceof ImageOutputStream stream))
+                throw new IllegalStateException("No output");
+            BufferedImage source = toBufferedImage(image.getRenderedImage());
+            var region = new Rectangle(0, 0, source.getWidth(), source.getHeight());
+            int periodX = 1;
+            int periodY = 1;
+            if (param != null) {
+                if (param.getSourceRegion() != null)
+                    region = region.intersection(param.getSourceRegion());
+                periodX = param.getSourceXSubsampling();
+                periodY = param.getSourceYSubsampling();
+                region.x += param.getSubsamplingXOffset();
+                region.y += param.getSubsamplingYOffset();
+                region.width -= param.getSubsamplingXOffset();
+                region.height -= param.getSubsamplingYOffset();
+            }
+            if (region.isEmpty())
+                throw new IllegalArgumentException("Empty source region");
+            int width = (region.width + periodX - 1) / periodX;
+            int height = (region.height + periodY - 1) / periodY;
+
+            var output = output(stream);
+            processImageStarted(0);
+            if (periodX == 1 && periodY == 1 && region.width == source.getWidth() && region.height == source.getHeight()) {
+                QOITranscoder.encode(source, output);
+            } else {
+                var channels = QOITranscoder.channels(source);
+                var encoder = channels == QOISpecification.RGB
+                        ? QOIStreamEncoder.opaque(output, width, height, channels, QOISpecification.sRGB)
+                        : new QOIStreamEncoder(output, width, height, channels, QOISpecification.sRGB);
+                var sub = source.getSubimage(region.x, region.y, region.width, region.height);
+                int[] row = new int[region.width];
+                int[] selected = new int[width];
+                for (int y = 0; y < height; y++) {
+                    QOITranscoder.readRow(sub, y * periodY, row);
+                    for (int x = 0; x < width; x++) {
+                        selected[x] = row[x * periodX];
+                    }
+                    encoder.pushRow(selected);
+                    processImageProgress(100f * (y + 1) / height);
+                }
+                encoder.finish();
+            }
+            stream.flush();
+            processImageComplete();
+        }
+
+        private static BufferedImage toBufferedImage(RenderedImage image){
+            if (image instanceof BufferedImage buffered)
+                return buffered;
+            var model = image.getColorModel();
+            var raster = model.createCompatibleWritableRaster(image.getWidth(), image.getHeight());
+            raster.setRect(-image.getMinX(), -image.getMinY(), image.getData());
+            return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== STREAMS ====================================
+    // ==================================================================================
+
+    private static InputStream input(ImageInputStream stream){
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return stream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return stream.read(b, off, len);
+            }
+        };
+    }
+
+    private static OutputStream output(ImageOutputStream stream){
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                stream.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                stream.write(b, off, len);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,109 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Re-encoding of partially modified images.
+ * <p>
+ * While encoding, the state of the encoder is saved every few rows. After an edit, the encoding
+ * restarts from the last checkpoint before the first modified row. Past the last modified row,
+ * as soon as the state of the encoder is the same as the one saved at a checkpoint, the
+ * remaining chunks are known to be the same as before and are copied from the previous file.
+ * The work depends on the size of the edit and on how long the modified pixels stay in the
+ * index table, not on the size of the image.
+ */
+public final class QOIIncremental {
+
+    /**
+     * Default number of rows between two checkpoints
+     */
+    public static final int DEFAULT_INTERVAL = 16;
+
+    private QOIIncremental(){}
+
+    /**
+     * "Quite Ok Image" file with the states of its encoder
+     * @param file (byte[]) - Content of the file
+     * @param interval (int) - Number of rows between two checkpoints
+     * @param checkpoints (List) - State of the encoder at the start of the rows 0, interval, 2 * interval ...
+     */
+    public record Encoded(byte[] file, int interval, List<QOIStreamEncoder.Checkpoint> checkpoints){}
+
+    /**
+     * Encode an image and save the state of the encoder every {@code interval} rows.
+     * The file is the same as {@link QOIEncoder#qoiFile(Helper.Image)}
+     * @param image (Helper.Image) - Image to encode
+     * @param interval (int) - Number of rows between two checkpoints
+     * @return (Encoded) - The file and its checkpoints
+     */
+    public static Encoded encode(Helper.Image image, int interval){
+        assert image != null && interval > 0;
+        int[][] data = image.data();
+        int width = data[0].length;
+        int height = data.length;
+        var output = new ByteArrayOutputStream(QOISpecification.HEADER_SIZE + width * height + QOISpecification.QOI_EOF.length);
+        var encoder = new QOIStreamEncoder(output, width, height, image.channels(), image.color_space());
+        var checkpoints = new ArrayList<QOIStreamEncoder.Checkpoint>(height / interval + 1);
+        for (int y = 0; y < height; y++) {
+            if (y % interval == 0) {
+                checkpoints.add(encoder.checkpoint());
+            }
+            encoder.pushRow(data[y]);
+        }
+        encoder.finish();
+        return new Encoded(output.toByteArray(), interval, checkpoints);
+    }
+
+    /**
+     * Encode an image that only differs from a previously encoded one between two rows.
+     * The file is the same as encoding the new image from scratch
+     * @param previous (Encoded) - Encoding of the image before the edit
+     * @param image (Helper.Image) - Image after the edit, of the same dimensions and header
+     * @param firstDirtyRow (int) - First row that may have changed
+     * @param lastDirtyRow (int) - Last row that may have changed
+     * @return (Encoded) - Encoding of the new image, with up to date checkpoints
+     */
+    public static Encoded reencode(Encoded previous, Helper.Image image, int firstDirtyRow, int lastDirtyRow){
+        assert previous != null && image != null;
+        int[][] data = image.data();
+        int width = data[0].length;
+        int height = data.length;
+        int interval = previous.interval();
+        var old = previous.checkpoints();
+        assert old.size() == (height + interval - 1) / interval : "the previous encoding is not of an image of this height";
+        assert 0 <= firstDirtyRow && firstDirtyRow <= lastDirtyRow && lastDirtyRow < height;
+
+        int first = firstDirtyRow / interval;
+        var start = old.get(first);
+        var output = new ByteArrayOutputStream(previous.file().length);
+        // header and chunks before the first dirty row
+        output.write(previous.file(), 0, (int) start.offset());
+        var encoder = QOIStreamEncoder.resume(output, width, height, start);
+        var checkpoints = new ArrayList<>(old.subList(0, first));
+
+        for (int y = first * interval; y < height; y++) {
+            if (y % interval == 0) {
+                var checkpoint = encoder.checkpoint();
+                var before = old.get(y / interval);
+                if (y > lastDirtyRow && checkpoint.sameState(before)) {
+                    // the rest of the chunks are the ones of the previous file
+                    encoder.flush();
+                    long shift = checkpoint.offset() - before.offset();
+                    output.write(previous.file(), (int) before.offset(), previous.file().length - (int) before.offset());
+                    for (var unchanged : old.subList(y / interval, old.size())) {
+                        checkpoints.add(new QOIStreamEncoder.Checkpoint(unchanged.pixel(), unchanged.offset() + shift,
+                                unchanged.previousPixel(), unchanged.run(), unchanged.index()));
+                    }
+                    return new Encoded(output.toByteArray(), interval, checkpoints);
+                }
+                checkpoints.add(checkpoint);
+            }
+            encoder.pushRow(data[y]);
+        }
+        encoder.finish();
+        return new Encoded(output.toByteArray(), interval, checkpoints);
+    }
+
+}
@@ -0,0 +1,522 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of "Quite Ok Image" files, to detect the corruption of stored files.
+ * <p>
+ * The checksums are computed on the bytes written by the encoder while they are written, and
+ * verified on the bytes read by the decoder while they are read : protecting a file costs neither
+ * a second pass over its bytes nor more I/O than the checksums themselves. Besides the checksum
+ * of the whole file, every block of {@link #DEFAULT_BLOCK_SIZE} bytes has its own checksum, so the
+ * corruption of a large file is reported as soon as the decoder has read the damaged block.
+ * <p>
+ * The checksums are stored either in a trailer appended after the EOF marker, that decoders stopping
+ * at the EOF marker ignore, or in a sidecar file named after the file with {@link #SIDECAR_SUFFIX}.
+ * Both hold the same bytes, every number in big endian :
+ * <pre>
+ *     block checksums   4 bytes each
+ *     file checksum     4 bytes
+ *     file length       8 bytes
+ *     block size        4 bytes
+ *     block count       4 bytes
+ *     trailer size      4 bytes
+ *     magic             "qoic"
+ * </pre>
+ * A "Quite Ok Image" file ends with its EOF marker, never with the magic, which tells whether a
+ * file has a trailer.
+ */
+public final class QOIIntegrity {
+
+    /**
+     * Bytes covered by every block checksum
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    /**
+     * Suffix of the sidecar file of a "Quite Ok Image" file
+     */
+    public static final String SIDECAR_SUFFIX = ".crc32c";
+
+    private static final byte[] MAGIC = {'q', 'o', 'i', 'c'};
+    // everything after the block checksums
+    private static final int FIXED_SIZE = 4 + 8 + 4 + 4 + 4 + MAGIC.length;
+
+    /**
+     * Where the checksums of a file are stored
+     */
+    public enum Storage {
+        TRAILER, SIDECAR
+    }
+
+    private QOIIntegrity(){}
+
+    // ==================================================================================
+    // ==================================== CHECKSUMS ===================================
+    // ==================================================================================
+
+    /**
+     * Checksums of a file
+     * @param length (long) - Number of bytes of the file, without the trailer
+     * @param blockSize (int) - Bytes covered by every block checksum
+     * @param crc (int) - CRC32C of the whole file
+     * @param blocks (int[]) - CRC32C of every block, the last one may be shorter
+     */
+    public record Checksums(long length, int blockSize, int crc, int[] blocks) {
+
+        public Checksums {
+            assert length >= 0 && blockSize > 0 && blocks != null;
+            assert blocks.length == (length + blockSize - 1) / blockSize;
+        }
+
+        /**
+         * @return (byte[]) - The trailer, also the content of the sidecar file
+         */
+        public byte[] toBytes(){
+            var buffer = ByteBuffer.allocate(blocks.length * Integer.BYTES + FIXED_SIZE);
+            for (int block : blocks) {
+                buffer.putInt(block);
+            }
+            buffer.putInt(crc).putLong(length).putInt(blockSize).putInt(blocks.length)
+                    .putInt(buffer.capacity()).put(MAGIC);
+            return buffer.array();
+        }
+
+        /**
+         * Read checksums from the end of some bytes
+         * @param bytes (byte[]) - Bytes ending with a trailer, or the content of a sidecar file
+         * @return (Optional) - The checksums, empty if the bytes do not end with a trailer
+         */
+        public static Optional<Checksums> parse(byte[] bytes){
+            assert bytes != null;
+            if (bytes.length < FIXED_SIZE)
+                return Optional.empty();
+            var buffer = ByteBuffer.wrap(bytes, bytes.length - FIXED_SIZE, FIXED_SIZE);
+            int crc = buffer.getInt();
+            long length = buffer.getLong();
+            int blockSize = buffer.getInt();
+            int count = buffer.getInt();
+            int size = buffer.getInt();
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || blockSize <= 0 || length < 0 || count < 0
+                    || count != (length + blockSize - 1) / blockSize
+                    || size != (long) count * Integer.BYTES + FIXED_SIZE || size > bytes.length)
+                return Optional.empty();
+            int[] blocks = new int[count];
+            ByteBuffer.wrap(bytes, bytes.length - size, size - FIXED_SIZE).asIntBuffer().get(blocks);
+            return Optional.of(new Checksums(length, blockSize, crc, blocks));
+        }
+
+        /**
+         * @return (int) - Number of bytes of the trailer
+         */
+        public int size(){
+            return blocks.length * Integer.BYTES + FIXED_SIZE;
+        }
+    }
+
+    /**
+     * Compute the checksums of some bytes
+     * @param bytes (byte[]) - Content of a file
+     * @param blockSize (int) - Bytes covered by every block checksum
+     * @return (Checksums) - The checksums
+     */
+    public static Checksums of(byte[] bytes, int blockSize){
+        assert bytes != null;
+        var hasher = new Hasher(blockSize);
+        hasher.update(bytes, 0, bytes.length);
+        return hasher.checksums();
+    }
+
+    // CRC32C of the whole stream and of every block, updated with the bytes as they pass
+    private static final class Hasher {
+
+        private final int blockSize;
+        private final CRC32C file = new CRC32C();
+        private final CRC32C block = new CRC32C();
+        private int[] blocks = new int[16];
+        private int count = 0;
+        private int inBlock = 0;
+        private long length = 0;
+
+        private Hasher(int blockSize){
+            assert blockSize > 0;
+            this.blockSize = blockSize;
+        }
+
+        private void update(byte[] bytes, int offset, int length){
+            file.update(bytes, offset, length);
+            this.length += length;
+            while (length > 0) {
+                int n = Math.min(length, blockSize - inBlock);
+                block.update(bytes, offset, n);
+                inBlock += n;
+                offset += n;
+                length -= n;
+                if (inBlock == blockSize)
+                    endBlock();
+            }
+        }
+
+        private void endBlock(){
+            if (count == blocks.length)
+                blocks = Arrays.copyOf(blocks, count * 2);
+            blocks[count++] = (int) block.getValue();
+            block.reset();
+            inBlock = 0;
+        }
+
+        // completed blocks only
+        private int count(){
+            return count;
+        }
+
+        private int block(int index){
+            return blocks[index];
+        }
+
+        private Checksums checksums(){
+            if (inBlock != 0)
+                endBlock();
+            return new Checksums(length, blockSize, (int) file.getValue(), Arrays.copyOf(blocks, count));
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== STREAMS ====================================
+    // ==================================================================================
+
+    /**
+     * Stream computing the checksums of the bytes written to it, typically by a {@link QOIStreamEncoder}
+     */
+    public static final class HashingOutputStream extends FilterOutputStream {
+
+        private final Hasher hasher;
+        private Checksums checksums;
+
+        /**
+         * @param output (OutputStream) - Where the bytes are written
+         * @param blockSize (int) - Bytes covered by every block checksum
+         */
+        public HashingOutputStream(OutputStream output, int blockSize){
+            super(output);
+            this.hasher = new Hasher(blockSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (checksums != null)
+                throw new IOException("The checksums are already computed");
+            out.write(b, off, len);
+            hasher.update(b, off, len);
+        }
+
+        /**
+         * End the stream, no more bytes can be written
+         * @return (Checksums) - The checksums of the written bytes
+         */
+        public Checksums checksums(){
+            if (checksums == null)
+                checksums = hasher.checksums();
+            return checksums;
+        }
+
+        /**
+         * End the stream and write the trailer to the underlying stream, which is not closed
+         * @return (Checksums) - The checksums of the written bytes
+         */
+        public Checksums writeTrailer() throws IOException {
+            var result = checksums();
+            out.write(result.toBytes());
+            out.flush();
+            return result;
+        }
+    }
+
+    /**
+     * Stream verifying the bytes read from it against their expected checksums. Every block is
+     * verified as soon as its last byte is read, the whole file with its last byte. The stream
+     * ends after the bytes covered by the checksums, a trailer is never read from it.
+     */
+    public static final class VerifyingInputStream extends FilterInputStream {
+
+        private final Checksums expected;
+        private final Hasher hasher;
+        private long position = 0;
+        private int verified = 0;
+
+        /**
+         * @param input (InputStream) - Stream positioned on the first byte of the file
+         * @param expected (Checksums) - Checksums of the file
+         */
+        public VerifyingInputStream(InputStream input, Checksums expected){
+            super(input);
+            assert expected != null;
+            this.expected = expected;
+            this.hasher = new Hasher(expected.blockSize());
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            long left = expected.length() - position;
+            if (left == 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n < 0)
+                throw new IOException(String.format("Truncated file, %d bytes missing", left));
+            hasher.update(b, off, n);
+            position += n;
+            verify();
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are read, to verify them
+            byte[] buffer = new byte[(int) Math.min(n, 1 << 13)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read < 0)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), expected.length() - position);
+        }
+
+        @Override
+        public boolean markSupported(){
+            return false;
+        }
+
+        @Override
+        public void mark(int limit){}
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        /**
+         * @return (boolean) - True once every byte of the file has been read and verified
+         */
+        public boolean verified(){
+            return position == expected.length();
+        }
+
+        private void verify() throws IOException {
+            for (; verified < hasher.count(); verified++) {
+                checkBlock(verified, hasher.block(verified));
+            }
+            if (!verified())
+                return;
+            var actual = hasher.checksums();
+            for (; verified < actual.blocks().length; verified++) {
+                checkBlock(verified, actual.blocks()[verified]);
+            }
+            if (actual.crc() != expected.crc())
+                throw new IOException("Checksum mismatch of the file");
+        }
+
+        private void checkBlock(int index, int crc) throws IOException {
+            if (crc != expected.blocks()[index])
+                throw new IOException(String.format("Checksum mismatch of block %d at offset %d",
+                        index, (long) index * expected.blockSize()));
+        }
+    }
+
+    // ==================================================================================
+    // ====================================== FILES =====================================
+    // ==================================================================================
+
+    public static Checksums write(Helper.Image image, Path target, Storage storage){
+        return write(image, target, storage, false);
+    }
+
+    /**
+     * Encode an image into a file with its checksums, computed while the file is written
+     * @param image (Helper.Image) - Image to encode
+     * @param target (Path) - File to write
+     * @param storage (Storage) - Where the checksums are stored
+     * @param detectAlpha (boolean) - If true and every pixel is opaque, the file is
+     *                    written with {@link QOISpecification#RGB} channels
+     * @return (Checksums) - The checksums of the file
+     */
+    public static Checksums write(Helper.Image image, Path target, Storage storage, boolean detectAlpha){
+        assert image != null && target != null && storage != null;
+        try (var output = Files.newOutputStream(target)) {
+            var hashing = new HashingOutputStream(output, DEFAULT_BLOCK_SIZE);
+            QOIEncoder.qoiFile(image, detectAlpha, hashing);
+            if (storage == Storage.TRAILER)
+                return hashing.writeTrailer();
+            var checksums = hashing.checksums();
+            Files.write(sidecar(target), checksums.toBytes());
+            return checksums;
+        } catch (IOException e){
+            return Helper.fail("Cannot write \"%s\" : %s", target, e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a file, verifying its checksums while decoding
+     * @param file (Path) - File with a trailer or a sidecar file
+     * @return (Helper.Image) - The decoded image
+     * @throws RuntimeException if the file has no checksums or does not match them
+     */
+    public static Helper.Image decode(Path file){
+        return open(file, input -> FlatImage.decode(new QOIStreamDecoder(input)).toImage());
+    }
+
+    /**
+     * Decode the content of a file ending with a trailer, verifying its checksums while decoding
+     * @param content (byte[]) - Content of the file
+     * @return (Helper.Image) - The decoded image
+     * @throws RuntimeException if the content has no trailer or does not match it
+     */
+    public static Helper.Image decode(byte[] content){
+        assert content != null;
+        var checksums = Checksums.parse(content)
+                .orElseGet(() -> Helper.fail("No checksums at the end of the \"Quite Ok Image\" file"));
+        var input = new VerifyingInputStream(new ByteArrayInputStream(content), checksums);
+        return FlatImage.decode(new QOIStreamDecoder(input)).toImage();
+    }
+
+    /**
+     * Verify a file against its checksums without decoding it, to scrub stored files
+     * @param file (Path) - File with a trailer or a sidecar file
+     * @return (boolean) - True if the file matches its checksums
+     * @throws RuntimeException if the file has no checksums or cannot be read
+     */
+    public static boolean verify(Path file){
+        return open(file, input -> {
+            try {
+                input.transferTo(OutputStream.nullOutputStream());
+                return true;
+            } catch (IOException e){
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Verify the content of a file ending with a trailer
+     * @param content (byte[]) - Content of the file
+     * @return (boolean) - True if the content has a trailer and matches it
+     */
+    public static boolean verify(byte[] content){
+        assert content != null;
+        var checksums = Checksums.parse(content);
+        if (checksums.isEmpty() || checksums.get().length() + checksums.get().size() != content.length)
+            return false;
+        try (var input = new VerifyingInputStream(new ByteArrayInputStream(content), checksums.get())) {
+            input.transferTo(OutputStream.nullOutputStream());
+            return true;
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    /**
+     * @return (Path) - The sidecar file of a file
+     */
+    public static Path sidecar(Path file){
+        return file.resolveSibling(file.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Read the checksums of a file, from its trailer or else its sidecar file
+     * @param file (Path) - The file
+     * @return (Optional) - The checksums, empty if the file has neither
+     */
+    public static Optional<Checksums> checksums(Path file){
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return trailer(channel).or(() -> sidecarChecksums(file));
+        } catch (IOException e){
+            return Helper.fail("Cannot read \"%s\" : %s", file, e.getMessage());
+        }
+    }
+
+    private interface Reading<T> {
+        T read(VerifyingInputStream input);
+    }
+
+    private static <T> T open(Path file, Reading<T> reading){
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var checksums = trailer(channel).or(() -> sidecarChecksums(file))
+                    .orElseGet(() -> Helper.fail("\"%s\" has no checksums", file));
+            channel.position(0);
+            return reading.read(new VerifyingInputStream(Channels.newInputStream(channel), checksums));
+        } catch (IOException e){
+            return Helper.fail("Cannot read \"%s\" : %s", file, e.getMessage());
+        }
+    }
+
+    private static Optional<Checksums> trailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < FIXED_SIZE)
+            return Optional.empty();
+        var tail = ByteBuffer.allocate(FIXED_SIZE);
+        readFully(channel, tail, size - FIXED_SIZE);
+        int count = tail.getInt(16);
+        long trailerSize = (long) count * Integer.BYTES + FIXED_SIZE;
+        if (!Arrays.equals(Arrays.copyOfRange(tail.array(), FIXED_SIZE - MAGIC.length, FIXED_SIZE), MAGIC)
+                || count < 0 || trailerSize > size)
+            return Optional.empty();
+        var trailer = ByteBuffer.allocate((int) trailerSize);
+        readFully(channel, trailer, size - trailerSize);
+        return Checksums.parse(trailer.array())
+                .filter(checksums -> checksums.length() + trailerSize == size);
+    }
+
+    private static Optional<Checksums> sidecarChecksums(Path file){
+        var sidecar = sidecar(file);
+        if (!Files.isRegularFile(sidecar))
+            return Optional.empty();
+        try {
+            return Checksums.parse(Files.readAllBytes(sidecar));
+        } catch (IOException e){
+            return Optional.empty();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+}
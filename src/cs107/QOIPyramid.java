@@ -0,0 +1,205 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Builds every power of two level of an image, each one encoded as its own "Quite Ok Image".
+ * <p>
+ * The source is read once, row after row. Every level encodes the rows it receives with a
+ * {@link QOIStreamEncoder} and averages them two by two, with a 2x2 box filter, into the rows
+ * of the next level. A level only keeps one pending row, so the memory does not depend on the
+ * height of the image. The level {@code k + 1} is {@code ceil(w / 2) x ceil(h / 2)} for a level
+ * {@code k} of {@code w x h}, the last level is 1 x 1.
+ */
+public final class QOIPyramid {
+
+    private QOIPyramid(){}
+
+    /**
+     * @return (int) - Number of levels of a full pyramid, the image itself included
+     */
+    public static int levels(int width, int height){
+        assert width > 0 && height > 0;
+        int levels = 1;
+        while (width > 1 || height > 1) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    // ==================================================================================
+    // =================================== PYRAMID API ==================================
+    // ==================================================================================
+
+    /**
+     * Full pyramid of an image
+     * @param image (Helper.Image) - Level 0 of the pyramid
+     * @return (List) - Content of the "Quite Ok Image" file of every level, the image first
+     */
+    public static List<byte[]> build(Helper.Image image){
+        assert image != null;
+        int[][] data = image.data();
+        var files = outputs(levels(data[0].length, data.length));
+        build(image, files::get, files.size());
+        return files.stream().map(ByteArrayOutputStream::toByteArray).toList();
+    }
+
+    /**
+     * Write the first levels of the pyramid of an image
+     * @param image (Helper.Image) - Level 0 of the pyramid
+     * @param outputs (IntFunction) - Destination of the file of every level, flushed but not closed
+     * @param levels (int) - Number of levels to write, at most {@link #levels(int, int)}
+     */
+    public static void build(Helper.Image image, IntFunction<? extends OutputStream> outputs, int levels){
+        assert image != null;
+        int[][] data = image.data();
+        var top = chain(data[0].length, data.length, image.channels(), image.color_space(), outputs, levels);
+        for (int[] row : data) {
+            top.accept(row);
+        }
+        top.finish();
+    }
+
+    /**
+     * Full pyramid of the image of a decoder, decoded only once
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel of the level 0
+     * @return (List) - Content of the "Quite Ok Image" file of every level, the image first
+     */
+    public static List<byte[]> build(QOIStreamDecoder decoder){
+        assert decoder != null;
+        var files = outputs(levels(decoder.width(), decoder.height()));
+        build(decoder, files::get, files.size());
+        return files.stream().map(ByteArrayOutputStream::toByteArray).toList();
+    }
+
+    /**
+     * Write the first levels of the pyramid of the image of a decoder, decoded only once
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel of the level 0
+     * @param outputs (IntFunction) - Destination of the file of every level, flushed but not closed
+     * @param levels (int) - Number of levels to write, at most {@link #levels(int, int)}
+     */
+    public static void build(QOIStreamDecoder decoder, IntFunction<? extends OutputStream> outputs, int levels){
+        assert decoder != null;
+        var top = chain(decoder.width(), decoder.height(), decoder.channels(), decoder.colorSpace(), outputs, levels);
+        int[] row = new int[decoder.width()];
+        for (int y = 0; y < decoder.height(); y++) {
+            decoder.nextRow(row);
+            top.accept(row);
+        }
+        decoder.checkEnd();
+        top.finish();
+    }
+
+    // ==================================================================================
+    // ================================= PYRAMID LEVELS =================================
+    // ==================================================================================
+
+    private static List<ByteArrayOutputStream> outputs(int levels){
+        var outputs = new ArrayList<ByteArrayOutputStream>(levels);
+        for (int i = 0; i < levels; i++) {
+            outputs.add(new ByteArrayOutputStream());
+        }
+        return outputs;
+    }
+
+    private static Level chain(int width, int height, byte channels, byte colorSpace,
+                               IntFunction<? extends OutputStream> outputs, int levels){
+        assert outputs != null;
+        assert levels > 0 && levels <= levels(width, height);
+        Level next = null;
+        int[] widths = new int[levels];
+        int[] heights = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            widths[i] = width;
+            heights[i] = height;
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+        for (int i = levels - 1; i >= 0; i--) {
+            var encoder = new QOIStreamEncoder(outputs.apply(i), widths[i], heights[i], channels, colorSpace);
+            next = new Level(encoder, next);
+        }
+        return next;
+    }
+
+    /**
+     * Encodes the rows of one level and reduces them into the rows of the next one
+     */
+    private static final class Level {
+
+        private final QOIStreamEncoder encoder;
+        private final Level next;
+        private final int width;
+        // first row of the pair being reduced, null for the last level
+        private final int[] pending;
+        private boolean hasPending = false;
+        private final int[] reduced;
+
+        private Level(QOIStreamEncoder encoder, Level next){
+            this.encoder = encoder;
+            this.next = next;
+            this.width = encoder.width();
+            this.pending = next == null ? null : new int[width];
+            this.reduced = next == null ? null : new int[next.width];
+        }
+
+        private void accept(int[] row){
+            encoder.pushRow(row);
+            if (next == null)
+                return;
+            if (!hasPending) {
+                System.arraycopy(row, 0, pending, 0, width);
+                hasPending = true;
+                return;
+            }
+            reduce(pending, row);
+            hasPending = false;
+            next.accept(reduced);
+        }
+
+        private void finish(){
+            encoder.finish();
+            if (next == null)
+                return;
+            if (hasPending) {
+                // odd height, the last row is averaged alone
+                reduce(pending, null);
+                hasPending = false;
+                next.accept(reduced);
+            }
+            next.finish();
+        }
+
+        /**
+         * 2x2 box filter of two rows, or 2x1 of one row. The last column of an odd width is
+         * averaged alone. Each channel is rounded to the nearest value
+         */
+        private void reduce(int[] top, int[] bottom){
+            int[][] rows = bottom == null ? new int[][]{top} : new int[][]{top, bottom};
+            for (int x = 0; x < reduced.length; x++) {
+                int left = 2 * x;
+                int right = Math.min(left + 1, width - 1);
+                int count = (right - left + 1) * rows.length;
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int[] row : rows) {
+                    for (int i = left; i <= right; i++) {
+                        int pixel = row[i];
+                        a += pixel >>> 24;
+                        r += pixel >> 16 & 0xFF;
+                        g += pixel >> 8 & 0xFF;
+                        b += pixel & 0xFF;
+                    }
+                }
+                int half = count / 2;
+                reduced[x] = (a + half) / count << 24 | (r + half) / count << 16 | (g + half) / count << 8 | (b + half) / count;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,347 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Conversion of uncompressed images to "Quite Ok Image" files without ImageIO.
+ * <p>
+ * Supported inputs are binary PPM (P6), PAM (P7) with 1 to 4 channels and headerless raw RGB or
+ * RGBA. The pixels are memory mapped, converted one row at a time and given to a
+ * {@link QOIStreamEncoder}, so the image is never fully held on the heap.
+ */
+public final class QOIRawReader {
+
+    /**
+     * Rows mapped at once are limited to this many bytes
+     */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private static final int MAX_HEADER_SIZE = 4096;
+
+    private QOIRawReader(){}
+
+    /**
+     * Layout of the pixels of an uncompressed image
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param depth (int) - Samples per pixel : gray, gray and alpha, RGB or RGBA
+     * @param maxval (int) - Largest value of a sample, samples above 255 take two bytes
+     * @param dataOffset (long) - Position of the first sample in the file
+     */
+    public record Header(int width, int height, int depth, int maxval, long dataOffset){
+
+        public Header {
+            if (width <= 0 || height <= 0)
+                Helper.fail("Invalid dimensions %d x %d", width, height);
+            if (depth < 1 || depth > 4)
+                Helper.fail("Unsupported number of channels %d", depth);
+            if (maxval < 1 || maxval > 65535)
+                Helper.fail("Invalid maximal value %d", maxval);
+        }
+
+        public boolean hasAlpha(){
+            return depth == 2 || depth == 4;
+        }
+
+        public int bytesPerSample(){
+            return maxval > 255 ? 2 : 1;
+        }
+
+        public long rowBytes(){
+            return (long) width * depth * bytesPerSample();
+        }
+    }
+
+    // ==================================================================================
+    // ================================= CONVERSION API =================================
+    // ==================================================================================
+
+    /**
+     * @param path (String) - Path to a file
+     * @return (boolean) - true if the name of the file is the one of a PPM or PAM image
+     */
+    public static boolean isSupported(String path){
+        var name = path.toLowerCase(Locale.ROOT);
+        return name.endsWith(".ppm") || name.endsWith(".pnm") || name.endsWith(".pam");
+    }
+
+    public static void toQoi(String inputFile, String outputFile){
+        toQoi(inputFile, outputFile, false);
+    }
+
+    /**
+     * Convert a PPM (P6) or PAM (P7) image to a "Quite Ok Image" file
+     * @param inputFile (String) - Path to the image
+     * @param outputFile (String) - Path to the file to create
+     * @param detectAlpha (boolean) - If true, an image whose pixels are all opaque is written
+     *                    with {@link QOISpecification#RGB} channels even if the input has alpha
+     */
+    public static void toQoi(String inputFile, String outputFile, boolean detectAlpha){
+        assert inputFile != null && outputFile != null;
+        var input = Path.of(inputFile);
+        convert(input, readHeader(input), outputFile, detectAlpha);
+    }
+
+    /**
+     * Convert a headerless file of 8 bits samples to a "Quite Ok Image" file
+     * @param inputFile (String) - Path to the samples, row after row
+     * @param outputFile (String) - Path to the file to create
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - {@link QOISpecification#RGB} or {@link QOISpecification#RGBA} samples per pixel
+     */
+    public static void rawToQoi(String inputFile, String outputFile, int width, int height, byte channels){
+        assert inputFile != null && outputFile != null;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        convert(Path.of(inputFile), new Header(width, height, channels, 255, 0), outputFile, false);
+    }
+
+    /**
+     * Read the header of a PPM (P6) or PAM (P7) image
+     * @param input (Path) - Path to the image
+     * @return (Header) - Layout of the pixels
+     */
+    public static Header readHeader(Path input){
+        byte[] start;
+        try (var stream = Files.newInputStream(input)) {
+            start = stream.readNBytes(MAX_HEADER_SIZE);
+        } catch (IOException e){
+            return Helper.fail("Cannot read \"%s\" : %s", input, e.getMessage());
+        }
+        if (start.length < 2 || start[0] != 'P' || (start[1] != '6' && start[1] != '7'))
+            Helper.fail("\"%s\" is not a binary PPM or PAM image", input);
+        return start[1] == '6' ? ppmHeader(start) : pamHeader(start);
+    }
+
+    /**
+     * Encode the pixels of an uncompressed image
+     * @param input (Path) - Path to the image
+     * @param header (Header) - Layout of the pixels in the file
+     * @param output (OutputStream) - Destination of the "Quite Ok Image" file, flushed but not closed
+     * @param detectAlpha (boolean) - If true, an image whose pixels are all opaque is written
+     *                    with {@link QOISpecification#RGB} channels
+     */
+    public static void encode(Path input, Header header, OutputStream output, boolean detectAlpha){
+        assert input != null && header != null && output != null;
+        try (var channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            checkLength(input, header, channel.size());
+            // the alpha plane is only scanned when it may change the header
+            boolean opaque = !header.hasAlpha() || detectAlpha && isOpaque(channel, header);
+            byte channels = opaque ? QOISpecification.RGB : QOISpecification.RGBA;
+            var encoder = opaque
+                    ? QOIStreamEncoder.opaque(output, header.width(), header.height(), channels, QOISpecification.sRGB)
+                    : new QOIStreamEncoder(output, header.width(), header.height(), channels, QOISpecification.sRGB);
+            int[] row = new int[header.width()];
+            forEachRow(channel, header, (samples, y) -> {
+                convertRow(header, samples, row);
+                encoder.pushRow(row);
+            });
+            encoder.finish();
+        } catch (IOException e){
+            Helper.fail("An error occurred while reading \"%s\" : %s", input, e.getMessage());
+        }
+    }
+
+    // ==================================================================================
+    // ================================== HEADER PARSING ================================
+    // ==================================================================================
+
+    private static Header ppmHeader(byte[] start){
+        // "P6" width height maxval, separated by whitespace and comments, then one whitespace
+        int[] position = {2};
+        int width = token(start, position);
+        int height = token(start, position);
+        int maxval = token(start, position);
+        if (position[0] >= start.length || !Character.isWhitespace(start[position[0]]))
+            Helper.fail("Invalid PPM header");
+        return new Header(width, height, 3, maxval, position[0] + 1);
+    }
+
+    private static int token(byte[] start, int[] position){
+        int i = position[0];
+        while (i < start.length && (Character.isWhitespace(start[i]) || start[i] == '#')) {
+            if (start[i] == '#') {
+                while (i < start.length && start[i] != '\n') i++;
+            } else {
+                i++;
+            }
+        }
+        int value = 0;
+        int digits = 0;
+        while (i < start.length && start[i] >= '0' && start[i] <= '9' && digits < 10) {
+            value = value * 10 + start[i] - '0';
+            digits++;
+            i++;
+        }
+        if (digits == 0 || value < 0)
+            Helper.fail("Invalid PPM header");
+        position[0] = i;
+        return value;
+    }
+
+    private static Header pamHeader(byte[] start){
+        // one "KEY value" per line until ENDHDR
+        int width = 0, height = 0, depth = 0, maxval = 0;
+        String tupleType = null;
+        int lineStart = 3;
+        while (lineStart < start.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < start.length && start[lineEnd] != '\n') lineEnd++;
+            if (lineEnd == start.length)
+                break;
+            var line = new String(start, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII).strip();
+            lineStart = lineEnd + 1;
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            var parts = line.split("\\s+", 2);
+            try {
+                switch (parts[0]) {
+                    case "WIDTH" -> width = Integer.parseInt(parts[1]);
+                    case "HEIGHT" -> height = Integer.parseInt(parts[1]);
+                    case "DEPTH" -> depth = Integer.parseInt(parts[1]);
+                    case "MAXVAL" -> maxval = Integer.parseInt(parts[1]);
+                    case "TUPLTYPE" -> tupleType = parts[1];
+                    case "ENDHDR" -> {
+                        var header = new Header(width, height, depth, maxval, lineStart);
+                        if (tupleType != null && expectedDepth(tupleType) != depth)
+                            Helper.fail("Unsupported tuple type %s of depth %d", tupleType, depth);
+                        return header;
+                    }
+                    default -> { }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+                Helper.fail("Invalid PAM header line \"%s\"", line);
+            }
+        }
+        return Helper.fail("Invalid PAM header, ENDHDR not found");
+    }
+
+    private static int expectedDepth(String tupleType){
+        return switch (tupleType) {
+            case "GRAYSCALE", "BLACKANDWHITE" -> 1;
+            case "GRAYSCALE_ALPHA", "BLACKANDWHITE_ALPHA" -> 2;
+            case "RGB" -> 3;
+            case "RGB_ALPHA" -> 4;
+            default -> -1;
+        };
+    }
+
+    // ==================================================================================
+    // ================================= PIXEL CONVERSION ===============================
+    // ==================================================================================
+
+    private interface RowConsumer {
+        void accept(byte[] samples, int y);
+    }
+
+    /**
+     * Map the pixels by windows of whole rows and give the samples of every row
+     */
+    private static void forEachRow(FileChannel channel, Header header, RowConsumer consumer) throws IOException {
+        long rowBytes = header.rowBytes();
+        if (rowBytes > Integer.MAX_VALUE)
+            Helper.fail("Rows of %d bytes are not supported", rowBytes);
+        byte[] samples = new byte[(int) rowBytes];
+        int rowsPerWindow = (int) Math.max(1, Math.min(header.height(), MAP_WINDOW / rowBytes));
+        for (int top = 0; top < header.height(); top += rowsPerWindow) {
+            int rows = Math.min(rowsPerWindow, header.height() - top);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, header.dataOffset() + top * rowBytes, rows * rowBytes);
+            for (int y = 0; y < rows; y++) {
+                window.get(samples);
+                consumer.accept(samples, top + y);
+            }
+        }
+    }
+
+    private static boolean isOpaque(FileChannel channel, Header header) throws IOException {
+        int alpha = (header.depth() - 1) * header.bytesPerSample();
+        int step = header.depth() * header.bytesPerSample();
+        boolean[] opaque = {true};
+        forEachRow(channel, header, (samples, y) -> {
+            if (!opaque[0])
+                return;
+            for (int i = alpha; i < samples.length; i += step) {
+                if (sample(header, samples, i) != header.maxval()) {
+                    opaque[0] = false;
+                    return;
+                }
+            }
+        });
+        return opaque[0];
+    }
+
+    private static int sample(Header header, byte[] samples, int i){
+        return header.bytesPerSample() == 1 ? samples[i] & 0xFF : (samples[i] & 0xFF) << 8 | samples[i + 1] & 0xFF;
+    }
+
+    private static void convertRow(Header header, byte[] samples, int[] row){
+        if (header.maxval() == 255) {
+            // samples are already 8 bits values
+            switch (header.depth()) {
+                case 4 -> {
+                    for (int x = 0, i = 0; x < row.length; x++, i += 4)
+                        row[x] = (samples[i + 3] & 0xFF) << 24 | (samples[i] & 0xFF) << 16 | (samples[i + 1] & 0xFF) << 8 | samples[i + 2] & 0xFF;
+                }
+                case 3 -> {
+                    for (int x = 0, i = 0; x < row.length; x++, i += 3)
+                        row[x] = 0xFF000000 | (samples[i] & 0xFF) << 16 | (samples[i + 1] & 0xFF) << 8 | samples[i + 2] & 0xFF;
+                }
+                case 2 -> {
+                    for (int x = 0, i = 0; x < row.length; x++, i += 2)
+                        row[x] = (samples[i + 1] & 0xFF) << 24 | (samples[i] & 0xFF) * 0x010101;
+                }
+                default -> {
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = 0xFF000000 | (samples[x] & 0xFF) * 0x010101;
+                }
+            }
+            return;
+        }
+        int size = header.bytesPerSample();
+        int depth = header.depth();
+        for (int x = 0, i = 0; x < row.length; x++, i += depth * size) {
+            int first = scale(header, sample(header, samples, i));
+            int alpha = header.hasAlpha() ? scale(header, sample(header, samples, i + (depth - 1) * size)) : 0xFF;
+            if (depth >= 3) {
+                int green = scale(header, sample(header, samples, i + size));
+                int blue = scale(header, sample(header, samples, i + 2 * size));
+                row[x] = alpha << 24 | first << 16 | green << 8 | blue;
+            } else {
+                row[x] = alpha << 24 | first * 0x010101;
+            }
+        }
+    }
+
+    private static int scale(Header header, int sample){
+        return (sample * 255 + header.maxval() / 2) / header.maxval();
+    }
+
+    private static void checkLength(Path input, Header header, long length){
+        long size = header.rowBytes() * header.height();
+        if (length < header.dataOffset() + size)
+            Helper.fail("\"%s\" is truncated : %d bytes of pixels expected", input, size);
+    }
+
+    private static void convert(Path input, Header header, String outputFile, boolean detectAlpha){
+        // checked before the output is created, a truncated input leaves no empty file behind
+        try {
+            checkLength(input, header, Files.size(input));
+        } catch (IOException e){
+            Helper.fail("Cannot read \"%s\" : %s", input, e.getMessage());
+        }
+        try (var output = Files.newOutputStream(Path.of(outputFile))) {
+            encode(input, header, output, detectAlpha);
+        } catch (IOException e){
+            Helper.fail("An error occurred while writing \"%s\" : %s", outputFile, e.getMessage());
+        }
+    }
+
+}
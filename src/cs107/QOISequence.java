@@ -0,0 +1,322 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Container for a sequence of frames of the same size, e.g. camera bursts or screen recordings.
+ * <p>
+ * Key frames are stored as the data section of a regular "Quite Ok Image". The other frames
+ * store, with the same chunks, the per channel difference with the previous frame, so the
+ * regions that did not change between two frames collapse into runs.
+ * <p>
+ * Layout : magic, width (4), height (4), channels (1), color space (1), key frame interval (4),
+ * then for each frame its type (1), the length of its data (4) and its data,
+ * and finally the frame type {@link #END}.
+ */
+public final class QOISequence {
+
+    private QOISequence(){}
+
+    // ==================================================================================
+    // ================================ SEQUENCE FORMAT =================================
+    // ==================================================================================
+
+    /**
+     * Magic Number of a "Quite Ok Image" sequence
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 's'};
+
+    /**
+     * Size of a sequence header
+     */
+    public static final int HEADER_SIZE = MAGIC.length + 4 + 4 + 1 + 1 + 4;
+
+    /**
+     * Frame encoded as a standalone image
+     */
+    public static final byte KEY_FRAME = 0;
+
+    /**
+     * Frame encoded as the difference with the previous frame
+     */
+    public static final byte DELTA_FRAME = 1;
+
+    /**
+     * End of the sequence
+     */
+    public static final byte END = (byte) 0xFF;
+
+    // ==================================================================================
+    // ==================================== WRITER ======================================
+    // ==================================================================================
+
+    /**
+     * Encode frames one after the other to an output stream
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final OutputStream output;
+        private final int width;
+        private final int height;
+        private final int keyFrameInterval;
+
+        private final int[] previousFrame;
+        private final int[] residual;
+        private final ByteArrayOutputStream frameData = new ByteArrayOutputStream();
+        private int frames = 0;
+
+        /**
+         * Create a writer and write the header of the sequence
+         * @param output (OutputStream) - Destination of the sequence
+         * @param width (int) - Width of every frame
+         * @param height (int) - Height of every frame
+         * @param channels (byte) - Number of channels
+         * @param colorSpace (byte) - Color space
+         * @param keyFrameInterval (int) - A key frame is stored every keyFrameInterval frames
+         */
+        public Writer(OutputStream output, int width, int height, byte channels, byte colorSpace, int keyFrameInterval){
+            assert output != null;
+            assert width > 0 && height > 0;
+            assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+            assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+            assert keyFrameInterval > 0;
+            this.output = output;
+            this.width = width;
+            this.height = height;
+            this.keyFrameInterval = keyFrameInterval;
+            this.previousFrame = new int[width * height];
+            this.residual = new int[width];
+            write(ArrayUtils.concat(
+                    MAGIC,
+                    ArrayUtils.fromInt(width),
+                    ArrayUtils.fromInt(height),
+                    ArrayUtils.wrap(channels),
+                    ArrayUtils.wrap(colorSpace),
+                    ArrayUtils.fromInt(keyFrameInterval)
+            ));
+        }
+
+        /**
+         * Encode the next frame of the sequence
+         * @param frame (Helper.Image) - Frame, same size as the sequence
+         */
+        public void addFrame(Helper.Image frame){
+            assert frame != null;
+            int[][] data = frame.data();
+            assert data.length == height && data[0].length == width;
+
+            boolean key = frames % keyFrameInterval == 0;
+            frameData.reset();
+            var encoder = QOIStreamEncoder.data(frameData, width, height);
+            for (int y = 0; y < height; y++) {
+                int[] row = data[y];
+                int offset = y * width;
+                if (key) {
+                    encoder.pushRow(row);
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        residual[x] = subtract(row[x], previousFrame[offset + x]);
+                    }
+                    encoder.pushRow(residual);
+                }
+                System.arraycopy(row, 0, previousFrame, offset, width);
+            }
+            encoder.finish();
+
+            write(ArrayUtils.wrap(key ? KEY_FRAME : DELTA_FRAME));
+            write(ArrayUtils.fromInt(frameData.size()));
+            try {
+                frameData.writeTo(output);
+            } catch (IOException e){
+                Helper.fail("An error occurred while writing the sequence : %s", e.getMessage());
+            }
+            frames++;
+        }
+
+        /**
+         * @return (int) - Number of frames written so far
+         */
+        public int frames(){
+            return frames;
+        }
+
+        /**
+         * Write the end of the sequence. The underlying stream is not closed
+         */
+        @Override
+        public void close(){
+            write(ArrayUtils.wrap(END));
+            try {
+                output.flush();
+            } catch (IOException e){
+                Helper.fail("An error occurred while writing the sequence : %s", e.getMessage());
+            }
+        }
+
+        private void write(byte[] bytes){
+            try {
+                output.write(bytes);
+            } catch (IOException e){
+                Helper.fail("An error occurred while writing the sequence : %s", e.getMessage());
+            }
+        }
+    }
+
+    // ==================================================================================
+    // ==================================== READER ======================================
+    // ==================================================================================
+
+    /**
+     * Random access to the frames of a sequence stored in memory
+     */
+    public static final class Reader {
+
+        private final byte[] content;
+        private final int width;
+        private final int height;
+        private final byte channels;
+        private final byte colorSpace;
+        private final int keyFrameInterval;
+
+        // position of the data of each frame, its length and its type
+        private final int[] offsets;
+        private final int[] lengths;
+        private final boolean[] keys;
+
+        // last decoded frame, reused when reading the frames in order
+        private int[] current;
+        private int currentIndex = -1;
+
+        /**
+         * Read the header of the sequence and locate every frame. The frame data is not decoded
+         * @param content (byte[]) - Content of the sequence
+         */
+        public Reader(byte[] content){
+            assert content != null;
+            assert content.length >= HEADER_SIZE;
+            byte[][] header = ArrayUtils.partition(content, 4, 4, 4, 1, 1, 4);
+            assert ArrayUtils.equals(header[0], MAGIC);
+            this.content = content;
+            this.width = ArrayUtils.toInt(header[1]);
+            this.height = ArrayUtils.toInt(header[2]);
+            this.channels = header[3][0];
+            this.colorSpace = header[4][0];
+            this.keyFrameInterval = ArrayUtils.toInt(header[5]);
+
+            List<int[]> frames = new ArrayList<>();
+            int position = HEADER_SIZE;
+            while (position < content.length && content[position] != END) {
+                assert content[position] == KEY_FRAME || content[position] == DELTA_FRAME;
+                int length = ArrayUtils.toInt(ArrayUtils.extract(content, position + 1, 4));
+                frames.add(new int[]{position + 5, length, content[position]});
+                position += 5 + length;
+            }
+            offsets = new int[frames.size()];
+            lengths = new int[frames.size()];
+            keys = new boolean[frames.size()];
+            for (int i = 0; i < frames.size(); i++) {
+                offsets[i] = frames.get(i)[0];
+                lengths[i] = frames.get(i)[1];
+                keys[i] = frames.get(i)[2] == KEY_FRAME;
+            }
+            assert frames.isEmpty() || keys[0];
+        }
+
+        public int width(){
+            return width;
+        }
+
+        public int height(){
+            return height;
+        }
+
+        public int keyFrameInterval(){
+            return keyFrameInterval;
+        }
+
+        public int frameCount(){
+            return offsets.length;
+        }
+
+        /**
+         * @param index (int) - Index of a frame
+         * @return (int) - Index of the last key frame at or before the given frame
+         */
+        public int keyFrameBefore(int index){
+            assert index >= 0 && index < offsets.length;
+            while (!keys[index]) {
+                index--;
+            }
+            return index;
+        }
+
+        /**
+         * Decode a frame. Reading the frames in order only decodes each frame once,
+         * otherwise the decoding starts at the closest key frame
+         * @param index (int) - Index of the frame
+         * @return (Helper.Image) - The frame
+         */
+        public Helper.Image frame(int index){
+            assert index >= 0 && index < offsets.length;
+            int start = keyFrameBefore(index);
+            if (current != null && currentIndex >= start && currentIndex <= index) {
+                start = currentIndex + 1;
+            } else if (current == null) {
+                current = new int[width * height];
+            }
+            for (int i = start; i <= index; i++) {
+                decodeFrame(i);
+            }
+            currentIndex = index;
+
+            int[][] data = new int[height][width];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(current, y * width, data[y], 0, width);
+            }
+            return new Helper.Image(data, channels, colorSpace);
+        }
+
+        private void decodeFrame(int index){
+            var decoder = new QOIStreamDecoder(
+                    new ByteArrayInputStream(content, offsets[index], lengths[index]),
+                    width, height, channels, colorSpace);
+            if (keys[index]) {
+                decoder.next(current, 0, current.length);
+            } else {
+                for (int i = 0; i < current.length; i++) {
+                    current[i] = add(current[i], decoder.next());
+                }
+            }
+        }
+    }
+
+    // ==================================================================================
+    // ============================== PIXEL DIFFERENCES =================================
+    // ==================================================================================
+
+    /**
+     * Per channel difference (modulo 256) of two ARGB pixels
+     */
+    static int subtract(int pixel, int previous){
+        return ((pixel >>> 24) - (previous >>> 24) & 0xFF) << 24
+                | ((pixel >> 16) - (previous >> 16) & 0xFF) << 16
+                | ((pixel >> 8) - (previous >> 8) & 0xFF) << 8
+                | (pixel - previous & 0xFF);
+    }
+
+    /**
+     * Per channel sum (modulo 256) of two ARGB pixels, inverse of {@link #subtract(int, int)}
+     */
+    static int add(int previous, int residual){
+        return ((previous >>> 24) + (residual >>> 24) & 0xFF) << 24
+                | ((previous >> 16) + (residual >> 16) & 0xFF) << 16
+                | ((previous >> 8) + (residual >> 8) & 0xFF) << 8
+                | (previous + residual & 0xFF);
+    }
+
+}
@@ -0,0 +1,550 @@
+package cs107;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local HTTP transcoding service.
+ * <p>
+ * Endpoints, all of them streaming the request body into the codec :
+ * <ul>
+ *     <li>POST /encode : image (png, jpeg ...) to "Quite Ok Image", {@code ?detectAlpha=true} to drop an opaque alpha</li>
+ *     <li>POST /decode : "Quite Ok Image" to png</li>
+ *     <li>POST /probe : header of a "Quite Ok Image" as JSON, the data is not decoded</li>
+ *     <li>POST /thumbnail : "Quite Ok Image" to a png (or {@code ?format=qoi}) of at most {@code ?size=} pixels per side</li>
+ *     <li>GET /metrics : requests, rejections, bytes, throughput and latencies per endpoint, memory reservations</li>
+ * </ul>
+ * Besides the number of concurrent transcodes, every transcode reserves the memory of its
+ * working set from a {@link MemoryBudget}, estimated from the dimensions in the header before
+ * any pixel is allocated. A request is rejected when the memory is not released in time, except
+ * /decode which falls back to compressing the rows as they are decoded.
+ */
+public final class QOIServer implements AutoCloseable {
+
+    /**
+     * Limits of the service
+     * @param maxConcurrentTranscodes (int) - Number of transcodes running at the same time
+     * @param maxRequestBytes (long) - Largest accepted request body
+     * @param admissionTimeoutMillis (long) - How long a request waits for a transcode slot before being rejected
+     */
+    public record Config(int maxConcurrentTranscodes, long maxRequestBytes, long admissionTimeoutMillis){
+
+        public Config {
+            assert maxConcurrentTranscodes > 0;
+            assert maxRequestBytes > 0;
+            assert admissionTimeoutMillis >= 0;
+        }
+
+        public static Config defaults(){
+            return new Config(Runtime.getRuntime().availableProcessors(), 256L << 20, 1000);
+        }
+    }
+
+    private static final int DEFAULT_THUMBNAIL_SIZE = 128;
+    // 16 bits per sample with alpha
+    private static final int MAX_BYTES_PER_DECODED_PIXEL = 8;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Config config;
+    private final Semaphore transcodes;
+    private final MemoryBudget memory;
+    private final LongAdder streamedDecodes = new LongAdder();
+    private final Map<String, Metrics> metrics = new LinkedHashMap<>();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Create the service on the {@link MemoryBudget#global() global memory budget}, call {@link #start()} to accept requests
+     * @param address (InetSocketAddress) - Address to listen on
+     * @param config (Config) - Limits of the service
+     */
+    public QOIServer(InetSocketAddress address, Config config){
+        this(address, config, MemoryBudget.global());
+    }
+
+    /**
+     * Create the service, call {@link #start()} to accept requests
+     * @param address (InetSocketAddress) - Address to listen on
+     * @param config (Config) - Limits of the service
+     * @param memory (MemoryBudget) - Memory shared by the transcodes
+     */
+    public QOIServer(InetSocketAddress address, Config config, MemoryBudget memory){
+        assert address != null && config != null && memory != null;
+        this.config = config;
+        this.memory = memory;
+        this.transcodes = new Semaphore(config.maxConcurrentTranscodes(), true);
+        HttpServer created;
+        try {
+            created = HttpServer.create(address, 0);
+        } catch (IOException e){
+            created = Helper.fail("Cannot listen on %s : %s", address, e.getMessage());
+        }
+        this.server = created;
+        this.executor = newExecutor();
+        server.setExecutor(executor);
+
+        route("/encode", "POST", true, this::encode);
+        route("/decode", "POST", true, this::decode);
+        route("/thumbnail", "POST", true, this::thumbnail);
+        route("/probe", "POST", false, this::probe);
+        route("/metrics", "GET", false, this::metrics);
+    }
+
+    public void start(){
+        server.start();
+    }
+
+    public InetSocketAddress address(){
+        return server.getAddress();
+    }
+
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static void main(String[] args){
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        var server = new QOIServer(new InetSocketAddress("localhost", port), Config.defaults());
+        server.start();
+        System.out.printf("Listening on http://%s:%d%n", server.address().getHostString(), server.address().getPort());
+    }
+
+    // ==================================================================================
+    // ==================================== ENDPOINTS ===================================
+    // ==================================================================================
+
+    @SuppressWarnings("try")
+    private void encode(HttpExchange exchange, InputStream body, OutputStream response) throws IOException {
+        boolean detectAlpha = Boolean.parseBoolean(query(exchange, "detectAlpha", "false"));
+        try (var input = ImageIO.createImageInputStream(body)) {
+            var readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext())
+                throw new BadRequest("Unsupported image format");
+            var reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                // only the header is read to get the dimensions
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                try (var ignored = reserve(pixels * MAX_BYTES_PER_DECODED_PIXEL)) {
+                    BufferedImage image = reader.read(0);
+                    exchange.getResponseHeaders().set("Content-Type", "image/qoi");
+                    exchange.sendResponseHeaders(200, 0);
+                    QOITranscoder.encode(image, response, detectAlpha);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void decode(HttpExchange exchange, InputStream body, OutputStream response) throws IOException {
+        var decoder = decoder(body);
+        long pixels = (long) decoder.width() * decoder.height();
+        var whole = memory.tryReserve(pixels * decoder.channels());
+        if (whole.isPresent()) {
+            try (var ignored = whole.get()) {
+                BufferedImage image = QOITranscoder.decode(decoder);
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, 0);
+                ImageIO.write(image, "png", response);
+            }
+            return;
+        }
+        // not enough memory for the whole image : rows and blocks in flight only
+        streamedDecodes.increment();
+        long rows = (long) decoder.width() * 4 * 3;
+        long blocks = 4L * Runtime.getRuntime().availableProcessors() * PNGWriter.DEFAULT_BLOCK_SIZE;
+        try (var ignored = reserve(rows + blocks)) {
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, 0);
+            PNGWriter.defaults().write(decoder, response);
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void thumbnail(HttpExchange exchange, InputStream body, OutputStream response) throws IOException {
+        int size = parseInt(query(exchange, "size", Integer.toString(DEFAULT_THUMBNAIL_SIZE)));
+        String format = query(exchange, "format", "png");
+        if (size <= 0 || !(format.equals("png") || format.equals("qoi")))
+            throw new BadRequest("Invalid thumbnail parameters");
+
+        var decoder = decoder(body);
+        int factor = Math.max(1, Math.max(
+                (decoder.width() + size - 1) / size,
+                (decoder.height() + size - 1) / size));
+        long thumbWidth = (decoder.width() + factor - 1) / factor;
+        long thumbHeight = (decoder.height() + factor - 1) / factor;
+        // one row of the image, the sums of a band, the thumbnail and its encoding
+        long bytes = decoder.width() * 4L + thumbWidth * 32 + 2 * MemoryBudget.imageBytes(thumbWidth, thumbHeight);
+        try (var ignored = reserve(bytes)) {
+            Helper.Image thumbnail = QOIDecoder.decodeThumbnail(decoder, factor, true);
+
+            exchange.getResponseHeaders().set("Content-Type", format.equals("png") ? "image/png" : "image/qoi");
+            exchange.sendResponseHeaders(200, 0);
+            if (format.equals("qoi")) {
+                response.write(QOIEncoder.qoiFile(thumbnail));
+            } else {
+                ImageIO.write(toBufferedImage(thumbnail), "png", response);
+            }
+        }
+    }
+
+    private void probe(HttpExchange exchange, InputStream body, OutputStream response) throws IOException {
+        int[] headers = header(body);
+        sendText(exchange, response, "application/json", String.format(
+                "{\"width\":%d,\"height\":%d,\"channels\":%d,\"colorspace\":%d}%n",
+                headers[0], headers[1], headers[2], headers[3]));
+    }
+
+    private void metrics(HttpExchange exchange, InputStream body, OutputStream response) throws IOException {
+        double uptime = (System.nanoTime() - startTime) / 1e9;
+        var text = new StringBuilder();
+        text.append(String.format("uptime_seconds %.3f%n", uptime));
+        text.append(String.format("transcodes_available %d%n", transcodes.availablePermits()));
+        text.append(String.format("memory_capacity_bytes %d%n", memory.capacity()));
+        text.append(String.format("memory_reserved_bytes %d%n", memory.reserved()));
+        text.append(String.format("memory_peak_bytes %d%n", memory.peak()));
+        text.append(String.format("memory_reservations %d%n", memory.reservations()));
+        text.append(String.format("memory_rejections %d%n", memory.rejections()));
+        text.append(String.format("memory_waits %d%n", memory.waits()));
+        text.append(String.format("decodes_streamed %d%n", streamedDecodes.sum()));
+        for (var entry : metrics.entrySet()) {
+            entry.getValue().appendTo(text, entry.getKey(), uptime);
+        }
+        sendText(exchange, response, "text/plain", text.toString());
+    }
+
+    /**
+     * Read and validate the header of a "Quite Ok Image" before any memory is reserved
+     * for the dimensions it announces
+     * @return (int[]) - Width, height, channels and color space
+     * @throws BadRequest if the body does not start with a valid header
+     */
+    private static int[] header(InputStream body) throws IOException {
+        byte[] header = body.readNBytes(QOISpecification.HEADER_SIZE);
+        if (header.length != QOISpecification.HEADER_SIZE
+                || !ArrayUtils.equals(ArrayUtils.extract(header, 0, 4), QOISpecification.QOI_MAGIC)
+                || (header[12] != QOISpecification.RGB && header[12] != QOISpecification.RGBA)
+                || (header[13] != QOISpecification.sRGB && header[13] != QOISpecification.ALL))
+            throw new BadRequest("Not a \"Quite Ok Image\" header");
+        int[] headers = QOIDecoder.decodeHeader(header);
+        if (headers[0] <= 0 || headers[1] <= 0)
+            throw new BadRequest("Invalid dimensions " + headers[0] + " x " + headers[1]);
+        return headers;
+    }
+
+    private static QOIStreamDecoder decoder(InputStream body) throws IOException {
+        int[] headers = header(body);
+        return new QOIStreamDecoder(body, headers[0], headers[1], (byte) headers[2], (byte) headers[3]);
+    }
+
+    // ==================================================================================
+    // ================================= REQUEST HANDLING ===============================
+    // ==================================================================================
+
+    @FunctionalInterface
+    private interface Endpoint {
+        void handle(HttpExchange exchange, InputStream body, OutputStream response) throws IOException;
+    }
+
+    private static final class BadRequest extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private BadRequest(String message){
+            super(message);
+        }
+    }
+
+    private static final class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private TooLarge(long limit){
+            super("Request body larger than " + limit + " bytes");
+        }
+    }
+
+    private void route(String path, String method, boolean transcode, Endpoint endpoint){
+        var endpointMetrics = new Metrics();
+        metrics.put(path, endpointMetrics);
+        server.createContext(path, exchange -> {
+            long start = System.nanoTime();
+            int status = 500;
+            var body = new LimitedInputStream(exchange.getRequestBody(), config.maxRequestBytes());
+            var response = new CountingOutputStream(exchange.getResponseBody());
+            boolean admitted = false;
+            boolean aborted = false;
+            try {
+                if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                    status = sendError(exchange, 405, "Method not allowed");
+                    return;
+                }
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if (length != null && parseLong(length) > config.maxRequestBytes()) {
+                    status = sendError(exchange, 413, new TooLarge(config.maxRequestBytes()).getMessage());
+                    return;
+                }
+                if (transcode) {
+                    admitted = transcodes.tryAcquire(config.admissionTimeoutMillis(), TimeUnit.MILLISECONDS);
+                    if (!admitted) {
+                        endpointMetrics.rejected.increment();
+                        status = sendError(exchange, 503, "Too many concurrent transcodes");
+                        return;
+                    }
+                }
+                endpoint.handle(exchange, body, response);
+                status = 200;
+            } catch (TooLarge e){
+                status = sendError(exchange, 413, e.getMessage());
+            } catch (MemoryBudget.Exhausted e){
+                endpointMetrics.rejected.increment();
+                status = sendError(exchange, 503, e.getMessage());
+            } catch (BadRequest | NumberFormatException e){
+                status = sendError(exchange, 400, e.getMessage());
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                status = sendError(exchange, 503, "Interrupted");
+            } catch (IIOException e){
+                // ImageIO reports a malformed image, the request body is at fault
+                status = sendError(exchange, 400, e.getMessage());
+            } catch (IOException e){
+                status = sendError(exchange, 500, e.getMessage());
+            } catch (RuntimeException | AssertionError e){
+                // Helper.fail and the codec assertions report malformed input
+                status = sendError(exchange, 400, String.valueOf(e.getMessage()));
+            } finally {
+                if (admitted) {
+                    transcodes.release();
+                }
+                endpointMetrics.record(status, body.count(), response.count(), System.nanoTime() - start);
+                // when the data fails after the response is committed, the exchange is not
+                // ended : the server closes the connection and the client sees it truncated
+                aborted = status != 200 && exchange.getResponseCode() == 200;
+                if (!aborted) {
+                    drain(body);
+                    exchange.close();
+                }
+            }
+            if (aborted)
+                throw new IOException("Response aborted with status " + status);
+        });
+    }
+
+    /**
+     * Read what the endpoint left of the request body, up to the size limit, so the
+     * connection is not reset while the client is still sending it
+     */
+    private static void drain(InputStream body){
+        try {
+            body.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException | TooLarge ignored){
+            // the connection is closed anyway
+        }
+    }
+
+    private MemoryBudget.Reservation reserve(long bytes){
+        return memory.reserve(bytes, config.admissionTimeoutMillis());
+    }
+
+    private static int sendError(HttpExchange exchange, int status, String message){
+        if (exchange.getResponseCode() != -1)
+            // already committed, the exchange is aborted
+            return status;
+        try {
+            byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (IOException ignored){
+            // the headers were already sent or the client is gone, the exchange is closed anyway
+        }
+        return status;
+    }
+
+    private static void sendText(HttpExchange exchange, OutputStream response, String type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, bytes.length);
+        response.write(bytes);
+    }
+
+    private static String query(HttpExchange exchange, String name, String otherwise){
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return otherwise;
+        for (String parameter : query.split("&")) {
+            int equal = parameter.indexOf('=');
+            if (equal > 0 && parameter.substring(0, equal).equals(name))
+                return URLDecoder.decode(parameter.substring(equal + 1), StandardCharsets.UTF_8);
+        }
+        return otherwise;
+    }
+
+    private static int parseInt(String value){
+        return Integer.parseInt(value.trim());
+    }
+
+    private static long parseLong(String value){
+        return Long.parseLong(value.trim());
+    }
+
+    private static BufferedImage toBufferedImage(Helper.Image image){
+        int[][] data = image.data();
+        var buffer = new BufferedImage(data[0].length, data.length,
+                image.channels() == QOISpecification.RGBA ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < data.length; y++) {
+            buffer.setRGB(0, y, data[y].length, 1, data[y], 0, data[y].length);
+        }
+        return buffer;
+    }
+
+    /**
+     * One thread per request : virtual threads when the runtime has them, a cached pool otherwise
+     */
+    private static ExecutorService newExecutor(){
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e){
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "qoi-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== METRICS ====================================
+    // ==================================================================================
+
+    private static final class Metrics {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder latencyTotal = new LongAdder();
+        private final AtomicLong latencyMax = new AtomicLong();
+
+        private void record(int status, long in, long out, long latency){
+            requests.increment();
+            if (status != 200) {
+                errors.increment();
+            }
+            bytesIn.add(in);
+            bytesOut.add(out);
+            latencyTotal.add(latency);
+            latencyMax.accumulateAndGet(latency, Math::max);
+        }
+
+        private void appendTo(StringBuilder text, String endpoint, double uptime){
+            long count = requests.sum();
+            text.append(String.format("%s requests %d%n", endpoint, count));
+            text.append(String.format("%s errors %d%n", endpoint, errors.sum()));
+            text.append(String.format("%s rejected %d%n", endpoint, rejected.sum()));
+            text.append(String.format("%s bytes_in %d%n", endpoint, bytesIn.sum()));
+            text.append(String.format("%s bytes_out %d%n", endpoint, bytesOut.sum()));
+            text.append(String.format("%s throughput_in_mb_per_second %.3f%n", endpoint, bytesIn.sum() / 1e6 / uptime));
+            text.append(String.format("%s latency_average_ms %.3f%n", endpoint, count == 0 ? 0 : latencyTotal.sum() / 1e6 / count));
+            text.append(String.format("%s latency_max_ms %.3f%n", endpoint, latencyMax.get() / 1e6));
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== STREAMS ====================================
+    // ==================================================================================
+
+    /**
+     * Counts the bytes read and fails once more than the limit has been read
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count = 0;
+
+        private LimitedInputStream(InputStream input, long limit){
+            super(input);
+            this.limit = limit;
+        }
+
+        private long count(){
+            return count;
+        }
+
+        private void add(long n){
+            if (n > 0) {
+                count += n;
+                if (count > limit)
+                    throw new TooLarge(limit);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            add(b >= 0 ? 1 : 0);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            add(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            add(skipped);
+            return skipped;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream output){
+            super(output);
+        }
+
+        private long count(){
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Pull based "Quite Ok Image" decoder.
+ * <p>
+ * Pixels are decoded one at a time from the underlying bytes and returned as ARGB
+ * integers (the format of {@link Helper.Image#data()}), so callers can consume an
+ * image row by row without allocating the full resolution pixel array.
+ */
+public final class QOIStreamDecoder {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * ARGB version of {@link QOISpecification#START_PIXEL}
+     */
+    private static final int START_PIXEL = 0xFF000000;
+
+    private final InputStream input;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+
+    // Decoding state
+    private final int[] indexHashTable = new int[64];
+    private int previousPixel = START_PIXEL;
+    private int run = 0;
+    private long remaining;
+
+    /**
+     * Create a decoder over a complete "Quite Ok Image" file stored in memory
+     * @param content (byte[]) - Header, data and EOF of the file
+     */
+    public QOIStreamDecoder(byte[] content){
+        this(content, 0, content.length);
+    }
+
+    /**
+     * Create a decoder over a complete "Quite Ok Image" file stored in a region of an array
+     * @param content (byte[]) - Array holding the file
+     * @param offset (int) - Position of the header in the array
+     * @param length (int) - Length of the file in bytes
+     */
+    public QOIStreamDecoder(byte[] content, int offset, int length){
+        assert content != null;
+        assert offset >= 0 && length >= QOISpecification.HEADER_SIZE && offset + length <= content.length;
+        this.input = null;
+        this.buffer = content;
+        this.position = offset + QOISpecification.HEADER_SIZE;
+        this.limit = offset + length;
+        int[] header = QOIDecoder.decodeHeader(ArrayUtils.extract(content, offset, QOISpecification.HEADER_SIZE));
+        this.width = header[0];
+        this.height = header[1];
+        this.channels = (byte) header[2];
+        this.colorSpace = (byte) header[3];
+        this.remaining = (long) width * height;
+    }
+
+    /**
+     * Create a decoder reading a complete "Quite Ok Image" file from a stream.
+     * The header is consumed immediately.
+     * @param input (InputStream) - Stream positioned on the header of the file
+     */
+    public QOIStreamDecoder(InputStream input){
+        assert input != null;
+        this.input = input;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.position = 0;
+        this.limit = 0;
+        byte[] header = new byte[QOISpecification.HEADER_SIZE];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = (byte) readByte();
+        }
+        int[] headers = QOIDecoder.decodeHeader(header);
+        this.width = headers[0];
+        this.height = headers[1];
+        this.channels = (byte) headers[2];
+        this.colorSpace = (byte) headers[3];
+        this.remaining = (long) width * height;
+    }
+
+    /**
+     * Create a decoder reading the data section (no header) of a "Quite Ok Image" from a stream
+     * @param data (InputStream) - Stream positioned on the first chunk
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     */
+    public QOIStreamDecoder(InputStream data, int width, int height, byte channels, byte colorSpace){
+        assert data != null;
+        assert width > 0 && height > 0;
+        this.input = data;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.position = 0;
+        this.limit = 0;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+        this.remaining = (long) width * height;
+    }
+
+    // ==================================================================================
+    // ================================ IMAGE INFORMATION ===============================
+    // ==================================================================================
+
+    public int width(){
+        return width;
+    }
+
+    public int height(){
+        return height;
+    }
+
+    public byte channels(){
+        return channels;
+    }
+
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (long) - Number of pixels that have not been decoded yet
+     */
+    public long remaining(){
+        return remaining;
+    }
+
+    public boolean hasNext(){
+        return remaining > 0;
+    }
+
+    // ==================================================================================
+    // ================================ DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Decode the next pixel of the image
+     * @return (int) - ARGB value of the pixel
+     */
+    public int next(){
+        assert remaining > 0;
+        remaining--;
+        if (run > 0) {
+            run--;
+            return previousPixel;
+        }
+
+        int chunk = readByte();
+        int pixel;
+        if (chunk == (QOISpecification.QOI_OP_RGB_TAG & 0xFF)) {
+            int r = readByte();
+            int g = readByte();
+            int b = readByte();
+            pixel = (previousPixel & 0xFF000000) | r << 16 | g << 8 | b;
+        } else if (chunk == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF)) {
+            int r = readByte();
+            int g = readByte();
+            int b = readByte();
+            int a = readByte();
+            pixel = a << 24 | r << 16 | g << 8 | b;
+        } else {
+            switch (chunk & 0xC0) {
+                case QOISpecification.QOI_OP_INDEX_TAG -> pixel = indexHashTable[chunk];
+                case QOISpecification.QOI_OP_DIFF_TAG -> pixel = addDelta(previousPixel,
+                        (chunk >> 4 & 0x3) - 2,
+                        (chunk >> 2 & 0x3) - 2,
+                        (chunk & 0x3) - 2);
+                case QOISpecification.QOI_OP_LUMA_TAG & 0xFF -> {
+                    int next = readByte();
+                    int dg = (chunk & 0x3F) - 32;
+                    pixel = addDelta(previousPixel,
+                            dg - 8 + (next >> 4 & 0xF),
+                            dg,
+                            dg - 8 + (next & 0xF));
+                }
+                default -> {
+                    // QOI_OP_RUN, bias -1 and the current pixel is returned right away
+                    run = chunk & 0x3F;
+                    pixel = previousPixel;
+                }
+            }
+        }
+        indexHashTable[hash(pixel)] = pixel;
+        previousPixel = pixel;
+        return pixel;
+    }
+
+    /**
+     * Decode the next {@code length} pixels into the given array
+     * @param pixels (int[]) - Destination of the ARGB pixels
+     * @param offset (int) - First position to write to
+     * @param length (int) - Number of pixels to decode
+     */
+    public void next(int[] pixels, int offset, int length){
+        assert pixels != null;
+        assert offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        assert length <= remaining;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (run > 0) {
+                int n = Math.min(run, end - i);
+                Arrays.fill(pixels, i, i + n, previousPixel);
+                run -= n;
+                remaining -= n;
+                i += n;
+            } else {
+                pixels[i++] = next();
+            }
+        }
+    }
+
+    /**
+     * Decode the next row of the image
+     * @param row (int[]) - Destination, at least {@link #width()} long
+     */
+    public void nextRow(int[] row){
+        next(row, 0, width);
+    }
+
+    /**
+     * Decode and drop the next pixels. The decoder state is still updated
+     * @param pixels (long) - Number of pixels to skip
+     */
+    public void skip(long pixels){
+        assert pixels >= 0 && pixels <= remaining;
+        while (pixels > 0) {
+            if (run > 0) {
+                int n = (int) Math.min(run, pixels);
+                run -= n;
+                remaining -= n;
+                pixels -= n;
+            } else {
+                next();
+                pixels--;
+            }
+        }
+    }
+
+    /**
+     * Check that the data section is followed by {@link QOISpecification#QOI_EOF}.
+     * Must be called once every pixel has been decoded
+     */
+    public void checkEnd(){
+        assert remaining == 0;
+        for (byte b : QOISpecification.QOI_EOF) {
+            if (readByte() != (b & 0xFF))
+                Helper.fail("Missing \"Quite Ok Image\" EOF marker");
+        }
+    }
+
+    // ==================================================================================
+    // ================================ UTILITY METHODS =================================
+    // ==================================================================================
+
+    /**
+     * Same as {@link QOISpecification#hash(byte[])} for an ARGB pixel
+     * @param pixel (int) - ARGB pixel
+     * @return (int) - hash of the pixel
+     */
+    static int hash(int pixel){
+        return ((pixel >> 16 & 0xFF) * 3 + (pixel >> 8 & 0xFF) * 5 + (pixel & 0xFF) * 7 + (pixel >>> 24) * 11) & 0x3F;
+    }
+
+    private static int addDelta(int pixel, int dr, int dg, int db){
+        return (pixel & 0xFF000000)
+                | ((pixel >> 16) + dr & 0xFF) << 16
+                | ((pixel >> 8) + dg & 0xFF) << 8
+                | (pixel + db & 0xFF);
+    }
+
+    private int readByte(){
+        if (position == limit) {
+            if (input == null || !fill())
+                return Helper.fail("Unexpected end of \"Quite Ok Image\" data");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill(){
+        try {
+            int n = input.read(buffer, 0, buffer.length);
+            if (n <= 0)
+                return false;
+            position = 0;
+            limit = n;
+            return true;
+        } catch (IOException e){
+            return Helper.fail("An error occurred while reading \"Quite Ok Image\" data : %s", e.getMessage());
+        }
+    }
+
+}
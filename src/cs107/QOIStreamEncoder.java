@@ -0,0 +1,719 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Push based "Quite Ok Image" encoder.
+ * <p>
+ * Pixels are given one at a time (or a row at a time) as ARGB integers, the format
+ * of {@link Helper.Image#data()}, and the chunks are written to an output stream as
+ * soon as they are known. The produced chunks are the same as {@link QOIEncoder#encodeData(byte[][])}.
+ */
+public final class QOIStreamEncoder {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * ARGB version of {@link QOISpecification#START_PIXEL}
+     */
+    private static final int START_PIXEL = 0xFF000000;
+
+    // channels searched by the near lossless index lookup, and their weight in the hash
+    private static final int[] PROBED_CHANNELS = {QOISpecification.r, QOISpecification.g, QOISpecification.b};
+    private static final int[] PROBED_WEIGHTS = {3, 5, 7};
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private long written = 0;
+
+    private final int width;
+    private final int height;
+    private final boolean file;
+    private final boolean opaque;
+    // per channel tolerance of the near lossless mode, null when lossless
+    private final int[] tolerance;
+
+    // loop used by the bulk pushes, the chunks do not depend on it
+    private Kernel kernel = Kernel.GENERAL;
+
+    // Encoding state
+    private final int[] indexHashTable = new int[64];
+    private int previousPixel = START_PIXEL;
+    private int run = 0;
+    private long remaining;
+
+    /**
+     * Create an encoder writing a complete "Quite Ok Image" file. The header is written immediately
+     * @param output (OutputStream) - Destination of the file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     */
+    public QOIStreamEncoder(OutputStream output, int width, int height, byte channels, byte colorSpace){
+        this(output, width, height, channels, colorSpace, false);
+    }
+
+    private QOIStreamEncoder(OutputStream output, int width, int height, byte channels, byte colorSpace, boolean opaque){
+        this(output, width, height, channels, colorSpace, opaque, null);
+    }
+
+    private QOIStreamEncoder(OutputStream output, int width, int height, byte channels, byte colorSpace, boolean opaque, int[] tolerance){
+        this(output, width, height, true, opaque, tolerance);
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+        write(QOISpecification.QOI_MAGIC);
+        write(ArrayUtils.fromInt(width));
+        write(ArrayUtils.fromInt(height));
+        write(channels);
+        write(colorSpace);
+    }
+
+    private QOIStreamEncoder(OutputStream output, int width, int height, boolean file, boolean opaque, int[] tolerance){
+        assert output != null;
+        assert width > 0 && height > 0;
+        this.output = output;
+        this.width = width;
+        this.height = height;
+        this.file = file;
+        this.opaque = opaque;
+        this.tolerance = tolerance;
+        this.remaining = (long) width * height;
+    }
+
+    /**
+     * Create an encoder writing only the data section (no header, no EOF) of a "Quite Ok Image"
+     * @param output (OutputStream) - Destination of the chunks
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @return (QOIStreamEncoder) - The encoder
+     */
+    public static QOIStreamEncoder data(OutputStream output, int width, int height){
+        return new QOIStreamEncoder(output, width, height, false, false, null);
+    }
+
+    /**
+     * Create an encoder writing a complete "Quite Ok Image" file of an opaque image. The alpha of
+     * the given pixels is ignored and taken as 255, so QOI_OP_RGBA is never produced.
+     * For pixels that are all opaque, the chunks are the same as the general encoder
+     * @param output (OutputStream) - Destination of the file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels written in the header
+     * @param colorSpace (byte) - Color space
+     * @return (QOIStreamEncoder) - The encoder
+     */
+    public static QOIStreamEncoder opaque(OutputStream output, int width, int height, byte channels, byte colorSpace){
+        return new QOIStreamEncoder(output, width, height, channels, colorSpace, true);
+    }
+
+    /**
+     * Create an encoder writing a complete "Quite Ok Image" file of an approximation of the image.
+     * <p>
+     * Every channel of a written pixel differs from the given pixel by at most the tolerance of the
+     * channel. Within these bounds the cheapest chunk is chosen : a run of the previous pixel, an
+     * entry of the index table, a difference and then a luma difference. The next pixel is encoded
+     * against the written pixel, as the decoder sees it, so the errors never accumulate.
+     * The file is a standard "Quite Ok Image", a tolerance of 0 on every channel gives the
+     * lossless encoder
+     * @param output (OutputStream) - Destination of the file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     * @param tolerance (int[]) - Maximal error of every channel, indexed by {@link QOISpecification#r},
+     *                  {@link QOISpecification#g}, {@link QOISpecification#b} and {@link QOISpecification#a}
+     * @return (QOIStreamEncoder) - The encoder
+     */
+    public static QOIStreamEncoder nearLossless(OutputStream output, int width, int height, byte channels, byte colorSpace, int[] tolerance){
+        assert tolerance != null && tolerance.length == 4;
+        boolean exact = true;
+        for (int t : tolerance) {
+            assert t >= 0 && t <= 255;
+            exact &= t == 0;
+        }
+        if (exact)
+            return new QOIStreamEncoder(output, width, height, channels, colorSpace);
+        return new QOIStreamEncoder(output, width, height, channels, colorSpace, false, tolerance.clone());
+    }
+
+    /**
+     * State of an encoder between two pixels. Encoding the same pixels from the same state
+     * always produces the same chunks
+     * @param pixel (long) - Number of pixels given before the checkpoint
+     * @param offset (long) - Number of bytes produced before the checkpoint, see {@link #written()}
+     * @param previousPixel (int) - ARGB value of the last pixel
+     * @param run (int) - Length of the run not written yet
+     * @param index (int[]) - Copy of the index table
+     */
+    public record Checkpoint(long pixel, long offset, int previousPixel, int run, int[] index){
+
+        /**
+         * @return (boolean) - true if both checkpoints have the same encoding state, wherever they are
+         */
+        public boolean sameState(Checkpoint other){
+            return previousPixel == other.previousPixel && run == other.run && Arrays.equals(index, other.index);
+        }
+    }
+
+    /**
+     * Create an encoder continuing a complete "Quite Ok Image" file from a checkpoint of another
+     * encoder of an image of the same dimensions. The header and the chunks before the checkpoint
+     * are not written, the EOF marker is
+     * @param output (OutputStream) - Destination of the chunks after the checkpoint
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param checkpoint (Checkpoint) - State to start from
+     * @return (QOIStreamEncoder) - The encoder
+     */
+    public static QOIStreamEncoder resume(OutputStream output, int width, int height, Checkpoint checkpoint){
+        assert checkpoint != null;
+        assert checkpoint.pixel() >= 0 && checkpoint.pixel() <= (long) width * height;
+        var encoder = new QOIStreamEncoder(output, width, height, true, false, null);
+        encoder.remaining -= checkpoint.pixel();
+        encoder.written = checkpoint.offset();
+        encoder.previousPixel = checkpoint.previousPixel();
+        encoder.run = checkpoint.run();
+        System.arraycopy(checkpoint.index(), 0, encoder.indexHashTable, 0, encoder.indexHashTable.length);
+        return encoder;
+    }
+
+    /**
+     * Loops of the bulk pushes, specialized for a kind of content. Every loop produces the same
+     * chunks for any pixel, a pixel that does not fit the kind of the loop takes the general path
+     */
+    public enum Kernel {
+        /**
+         * The general decision ladder for every pixel
+         */
+        GENERAL,
+        /**
+         * Few colors : the lookup in the index table comes right after the run
+         */
+        PALETTE,
+        /**
+         * Opaque pixels with r == g == b : a single channel difference, only for an {@link #opaque} encoder
+         */
+        GRAYSCALE,
+        /**
+         * Long runs : the pixels equal to the previous one are counted with a bulk scan
+         */
+        FLAT
+    }
+
+    /**
+     * Choose the loop of the bulk pushes, it changes the speed of the encoder and never its chunks.
+     * {@link Kernel#GRAYSCALE} is ignored unless the encoder is {@link #opaque}, the near lossless
+     * encoder always uses its own loop
+     * @param kernel (Kernel) - The loop
+     * @return (QOIStreamEncoder) - This encoder
+     */
+    public QOIStreamEncoder kernel(Kernel kernel){
+        assert kernel != null;
+        this.kernel = kernel == Kernel.GRAYSCALE && !opaque ? Kernel.GENERAL : kernel;
+        return this;
+    }
+
+    // ==================================================================================
+    // ================================ IMAGE INFORMATION ===============================
+    // ==================================================================================
+
+    public int width(){
+        return width;
+    }
+
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (long) - Number of pixels that have not been given yet
+     */
+    public long remaining(){
+        return remaining;
+    }
+
+    /**
+     * @return (long) - Number of bytes produced so far, buffered ones included
+     */
+    public long written(){
+        return written + position;
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Encode the next pixel of the image
+     * @param pixel (int) - ARGB value of the pixel
+     */
+    public void push(int pixel){
+        if (tolerance != null) {
+            pushNearLossless(pixel);
+        } else if (opaque) {
+            pushOpaque(pixel | 0xFF000000);
+        } else {
+            pushAny(pixel);
+        }
+    }
+
+    private void pushAny(int pixel){
+        assert remaining > 0;
+        remaining--;
+        // 1. run
+        if (pixel == previousPixel) {
+            run++;
+            if (run == 62 || remaining == 0) {
+                writeRun();
+            }
+            return;
+        }
+        if (run != 0) {
+            writeRun();
+        }
+        // 2. index
+        int index = QOIStreamDecoder.hash(pixel);
+        if (indexHashTable[index] == pixel) {
+            write((byte) (QOISpecification.QOI_OP_INDEX_TAG | index));
+            previousPixel = pixel;
+            return;
+        }
+        indexHashTable[index] = pixel;
+        if ((pixel ^ previousPixel) >>> 24 == 0) {
+            byte dr = (byte) ((pixel >> 16) - (previousPixel >> 16));
+            byte dg = (byte) ((pixel >> 8) - (previousPixel >> 8));
+            byte db = (byte) (pixel - previousPixel);
+            int dr_dg = (byte) (dr - dg);
+            int db_dg = (byte) (db - dg);
+            if (dr > -3 && dr < 2 && dg > -3 && dg < 2 && db > -3 && db < 2) {
+                // 3. diff
+                write((byte) (QOISpecification.QOI_OP_DIFF_TAG | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2)));
+            } else if (dg > -33 && dg < 32 && dr_dg > -9 && dr_dg < 8 && db_dg > -9 && db_dg < 8) {
+                // 4. luma
+                write((byte) (QOISpecification.QOI_OP_LUMA_TAG | (dg + 32)));
+                write((byte) ((dr_dg + 8) << 4 | (db_dg + 8)));
+            } else {
+                // 5. rgb
+                write(QOISpecification.QOI_OP_RGB_TAG);
+                write((byte) (pixel >> 16));
+                write((byte) (pixel >> 8));
+                write((byte) pixel);
+            }
+        } else {
+            // 6. rgba
+            write(QOISpecification.QOI_OP_RGBA_TAG);
+            write((byte) (pixel >> 16));
+            write((byte) (pixel >> 8));
+            write((byte) pixel);
+            write((byte) (pixel >>> 24));
+        }
+        previousPixel = pixel;
+    }
+
+    /**
+     * Same as {@link #pushAny(int)} for a pixel known to be opaque, as is the previous pixel :
+     * the alpha is never compared
+     */
+    private void pushOpaque(int pixel){
+        assert remaining > 0;
+        remaining--;
+        if (pixel == previousPixel) {
+            run++;
+            if (run == 62 || remaining == 0) {
+                writeRun();
+            }
+            return;
+        }
+        if (run != 0) {
+            writeRun();
+        }
+        int index = QOIStreamDecoder.hash(pixel);
+        if (indexHashTable[index] == pixel) {
+            write((byte) (QOISpecification.QOI_OP_INDEX_TAG | index));
+            previousPixel = pixel;
+            return;
+        }
+        indexHashTable[index] = pixel;
+        byte dr = (byte) ((pixel >> 16) - (previousPixel >> 16));
+        byte dg = (byte) ((pixel >> 8) - (previousPixel >> 8));
+        byte db = (byte) (pixel - previousPixel);
+        int dr_dg = (byte) (dr - dg);
+        int db_dg = (byte) (db - dg);
+        if (dr > -3 && dr < 2 && dg > -3 && dg < 2 && db > -3 && db < 2) {
+            write((byte) (QOISpecification.QOI_OP_DIFF_TAG | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2)));
+        } else if (dg > -33 && dg < 32 && dr_dg > -9 && dr_dg < 8 && db_dg > -9 && db_dg < 8) {
+            write((byte) (QOISpecification.QOI_OP_LUMA_TAG | (dg + 32)));
+            write((byte) ((dr_dg + 8) << 4 | (db_dg + 8)));
+        } else {
+            write(QOISpecification.QOI_OP_RGB_TAG);
+            write((byte) (pixel >> 16));
+            write((byte) (pixel >> 8));
+            write((byte) pixel);
+        }
+        previousPixel = pixel;
+    }
+
+    /**
+     * Near lossless version of {@link #pushAny(int)}. The index table mirrors the one of the
+     * decoder : it holds every written pixel, so any of its entries can be referenced. Besides
+     * the slot of the pixel, only the slots of the pixels one step away on a color channel are
+     * searched, a full scan of the table would cost more than the chunks it saves
+     */
+    private void pushNearLossless(int pixel){
+        assert remaining > 0;
+        remaining--;
+        // 1. run
+        if (within(pixel, previousPixel)) {
+            run++;
+            if (run == 62 || remaining == 0) {
+                writeIndexedRun();
+            }
+            return;
+        }
+        if (run != 0) {
+            writeIndexedRun();
+        }
+        // 2. index, the slot of the pixel first and the closest neighbouring slot otherwise
+        int index = QOIStreamDecoder.hash(pixel);
+        if (!within(pixel, indexHashTable[index])) {
+            index = probe(pixel, index);
+        }
+        if (index >= 0) {
+            write((byte) (QOISpecification.QOI_OP_INDEX_TAG | index));
+            written(indexHashTable[index]);
+            return;
+        }
+        int alpha = pixel >>> 24;
+        int previousAlpha = previousPixel >>> 24;
+        if (Math.abs(alpha - previousAlpha) <= tolerance[QOISpecification.a]) {
+            int r = pixel >> 16 & 0xFF, g = pixel >> 8 & 0xFF, b = pixel & 0xFF;
+            int pr = previousPixel >> 16 & 0xFF, pg = previousPixel >> 8 & 0xFF, pb = previousPixel & 0xFF;
+            int dr = (byte) (r - pr), dg = (byte) (g - pg), db = (byte) (b - pb);
+            // 3. diff
+            int qr = clamp(dr, -2, 1), qg = clamp(dg, -2, 1), qb = clamp(db, -2, 1);
+            if (close(r, pr + qr, QOISpecification.r) && close(g, pg + qg, QOISpecification.g) && close(b, pb + qb, QOISpecification.b)) {
+                write((byte) (QOISpecification.QOI_OP_DIFF_TAG | (qr + 2) << 4 | (qg + 2) << 2 | (qb + 2)));
+                written(previousPixel & 0xFF000000 | (pr + qr & 0xFF) << 16 | (pg + qg & 0xFF) << 8 | (pb + qb & 0xFF));
+                return;
+            }
+            // 4. luma
+            qg = clamp(dg, -32, 31);
+            int qr_qg = clamp(dr - qg, -8, 7), qb_qg = clamp(db - qg, -8, 7);
+            if (close(r, pr + qg + qr_qg, QOISpecification.r) && close(g, pg + qg, QOISpecification.g) && close(b, pb + qg + qb_qg, QOISpecification.b)) {
+                write((byte) (QOISpecification.QOI_OP_LUMA_TAG | (qg + 32)));
+                write((byte) ((qr_qg + 8) << 4 | (qb_qg + 8)));
+                written(previousPixel & 0xFF000000 | (pr + qg + qr_qg & 0xFF) << 16 | (pg + qg & 0xFF) << 8 | (pb + qg + qb_qg & 0xFF));
+                return;
+            }
+            // 5. rgb
+            write(QOISpecification.QOI_OP_RGB_TAG);
+            write((byte) r);
+            write((byte) g);
+            write((byte) b);
+            written(previousPixel & 0xFF000000 | pixel & 0x00FFFFFF);
+            return;
+        }
+        // 6. rgba
+        write(QOISpecification.QOI_OP_RGBA_TAG);
+        write((byte) (pixel >> 16));
+        write((byte) (pixel >> 8));
+        write((byte) pixel);
+        write((byte) (pixel >>> 24));
+        written(pixel);
+    }
+
+    /**
+     * Search the slots of the pixels differing by one on a channel with a tolerance : the hash
+     * moves by the weight of the channel
+     * @return (int) - Closest entry within the tolerance, -1 if none
+     */
+    private int probe(int pixel, int slot){
+        int index = -1;
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i < PROBED_CHANNELS.length; i++) {
+            if (tolerance[PROBED_CHANNELS[i]] == 0)
+                continue;
+            for (int sign = -1; sign <= 1; sign += 2) {
+                int candidate = slot + sign * PROBED_WEIGHTS[i] & 0x3F;
+                int error = error(pixel, indexHashTable[candidate]);
+                if (error < best && within(pixel, indexHashTable[candidate])) {
+                    best = error;
+                    index = candidate;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write the pending run of the near lossless mode. The decoder stores the pixel of every chunk
+     * in its index, runs included, and so must the table searched by the near lossless mode : the
+     * first run of an image puts the implicit opaque black pixel in a slot the lossless encoder never fills
+     */
+    private void writeIndexedRun(){
+        writeRun();
+        written(previousPixel);
+    }
+
+    /**
+     * Record the pixel seen by the decoder after a chunk of the near lossless mode
+     */
+    private void written(int pixel){
+        indexHashTable[QOIStreamDecoder.hash(pixel)] = pixel;
+        previousPixel = pixel;
+    }
+
+    private boolean within(int pixel, int candidate){
+        return close(pixel >>> 24, candidate >>> 24, QOISpecification.a)
+                && close(pixel >> 16 & 0xFF, candidate >> 16 & 0xFF, QOISpecification.r)
+                && close(pixel >> 8 & 0xFF, candidate >> 8 & 0xFF, QOISpecification.g)
+                && close(pixel & 0xFF, candidate & 0xFF, QOISpecification.b);
+    }
+
+    /**
+     * @param value (int) - Value of the channel in the image
+     * @param written (int) - Value written, taken modulo 256
+     * @param channel (int) - Index of the channel in the tolerance
+     */
+    private boolean close(int value, int written, int channel){
+        return Math.abs(value - (written & 0xFF)) <= tolerance[channel];
+    }
+
+    private static int error(int pixel, int candidate){
+        return Math.abs((pixel >>> 24) - (candidate >>> 24))
+                + Math.abs((pixel >> 16 & 0xFF) - (candidate >> 16 & 0xFF))
+                + Math.abs((pixel >> 8 & 0xFF) - (candidate >> 8 & 0xFF))
+                + Math.abs((pixel & 0xFF) - (candidate & 0xFF));
+    }
+
+    private static int clamp(int value, int min, int max){
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Encode the next {@code length} pixels of the image
+     * @param pixels (int[]) - ARGB pixels
+     * @param offset (int) - Position of the first pixel to encode
+     * @param length (int) - Number of pixels to encode
+     */
+    public void push(int[] pixels, int offset, int length){
+        assert pixels != null;
+        assert offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        if (tolerance != null) {
+            for (int i = offset; i < offset + length; i++) {
+                pushNearLossless(pixels[i]);
+            }
+        } else if (kernel == Kernel.FLAT) {
+            pushFlat(pixels, offset, length);
+        } else if (kernel == Kernel.PALETTE) {
+            pushPalette(pixels, offset, length);
+        } else if (kernel == Kernel.GRAYSCALE) {
+            pushGrayscale(pixels, offset, length);
+        } else if (opaque) {
+            for (int i = offset; i < offset + length; i++) {
+                pushOpaque(pixels[i] | 0xFF000000);
+            }
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                pushAny(pixels[i]);
+            }
+        }
+    }
+
+    /**
+     * {@link Kernel#FLAT} loop : the pixels equal to the previous one are counted first and
+     * added to the run at once
+     */
+    private void pushFlat(int[] pixels, int offset, int length){
+        int mask = opaque ? 0xFF000000 : 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int previous = previousPixel;
+            int start = i;
+            while (i < end && (pixels[i] | mask) == previous) {
+                i++;
+            }
+            if (i > start) {
+                addRun(i - start);
+            } else {
+                pushOne(pixels[i++] | mask);
+            }
+        }
+    }
+
+    /**
+     * {@link Kernel#PALETTE} loop : runs and hits of the index table, the rest takes the general path
+     */
+    private void pushPalette(int[] pixels, int offset, int length){
+        int mask = opaque ? 0xFF000000 : 0;
+        for (int i = offset; i < offset + length; i++) {
+            int pixel = pixels[i] | mask;
+            if (pixel == previousPixel) {
+                addRun(1);
+                continue;
+            }
+            int index = QOIStreamDecoder.hash(pixel);
+            if (indexHashTable[index] != pixel) {
+                pushOne(pixel);
+                continue;
+            }
+            remaining--;
+            if (run != 0) {
+                writeRun();
+            }
+            write((byte) (QOISpecification.QOI_OP_INDEX_TAG | index));
+            previousPixel = pixel;
+        }
+    }
+
+    /**
+     * {@link Kernel#GRAYSCALE} loop : between two gray pixels, the three differences are the same
+     * and the luma chunk always has a zero second byte
+     */
+    private void pushGrayscale(int[] pixels, int offset, int length){
+        for (int i = offset; i < offset + length; i++) {
+            int pixel = pixels[i] | 0xFF000000;
+            if (pixel == previousPixel) {
+                addRun(1);
+                continue;
+            }
+            if (!isGray(pixel) || !isGray(previousPixel)) {
+                pushOpaque(pixel);
+                continue;
+            }
+            remaining--;
+            if (run != 0) {
+                writeRun();
+            }
+            int value = pixel & 0xFF;
+            // hash of (value, value, value, 255)
+            int index = (value * 15 + 255 * 11) & 0x3F;
+            if (indexHashTable[index] == pixel) {
+                write((byte) (QOISpecification.QOI_OP_INDEX_TAG | index));
+                previousPixel = pixel;
+                continue;
+            }
+            indexHashTable[index] = pixel;
+            int d = (byte) (value - previousPixel);
+            if (d > -3 && d < 2) {
+                write((byte) (QOISpecification.QOI_OP_DIFF_TAG | (d + 2) << 4 | (d + 2) << 2 | (d + 2)));
+            } else if (d > -33 && d < 32) {
+                write((byte) (QOISpecification.QOI_OP_LUMA_TAG | (d + 32)));
+                write((byte) (8 << 4 | 8));
+            } else {
+                write(QOISpecification.QOI_OP_RGB_TAG);
+                write((byte) value);
+                write((byte) value);
+                write((byte) value);
+            }
+            previousPixel = pixel;
+        }
+    }
+
+    /**
+     * Add {@code count} pixels equal to the previous one, as many calls to the run step of {@link #pushAny(int)}
+     */
+    private void addRun(int count){
+        assert count <= remaining;
+        remaining -= count;
+        run += count;
+        while (run >= 62) {
+            int rest = run - 62;
+            run = 62;
+            writeRun();
+            run = rest;
+        }
+        if (remaining == 0 && run != 0) {
+            writeRun();
+        }
+    }
+
+    private void pushOne(int pixel){
+        if (opaque) {
+            pushOpaque(pixel);
+        } else {
+            pushAny(pixel);
+        }
+    }
+
+    private static boolean isGray(int pixel){
+        return ((pixel >> 8 ^ pixel) & 0xFFFF) == 0;
+    }
+
+    /**
+     * Encode the next row of the image
+     * @param row (int[]) - ARGB pixels, at least {@link #width()} long
+     */
+    public void pushRow(int[] row){
+        push(row, 0, width);
+    }
+
+    /**
+     * @return (Checkpoint) - Current state of the encoder
+     */
+    public Checkpoint checkpoint(){
+        return new Checkpoint((long) width * height - remaining, written(), previousPixel, run, indexHashTable.clone());
+    }
+
+    /**
+     * Terminate the encoding, writes the EOF marker when encoding a complete file and
+     * flushes the buffered bytes. The underlying stream is not closed
+     */
+    public void finish(){
+        assert remaining == 0;
+        if (run != 0) {
+            writeRun();
+        }
+        if (file) {
+            write(QOISpecification.QOI_EOF);
+        }
+        flush();
+        try {
+            output.flush();
+        } catch (IOException e){
+            Helper.fail("An error occurred while writing \"Quite Ok Image\" data : %s", e.getMessage());
+        }
+    }
+
+    // ==================================================================================
+    // ================================ UTILITY METHODS =================================
+    // ==================================================================================
+
+    private void writeRun(){
+        // bias -1
+        write((byte) (QOISpecification.QOI_OP_RUN_TAG | (run - 1)));
+        run = 0;
+    }
+
+    private void write(byte b){
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = b;
+    }
+
+    private void write(byte[] bytes){
+        for (byte b : bytes) {
+            write(b);
+        }
+    }
+
+    /**
+     * Write the buffered chunks to the output. The pending run is kept
+     */
+    void flush(){
+        try {
+            output.write(buffer, 0, position);
+        } catch (IOException e){
+            Helper.fail("An error occurred while writing \"Quite Ok Image\" data : %s", e.getMessage());
+        }
+        written += position;
+        position = 0;
+    }
+
+}
@@ -0,0 +1,344 @@
+package cs107;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Conversions between standard image formats and "Quite Ok Image" files that go straight
+ * from one representation to the other, without the intermediate {@link Helper.Image}
+ * and channel arrays used by {@link Main#pngToQoi(String, String)} and {@link Main#qoiToPng(String, String)}.
+ * <p>
+ * Unlike {@link Helper#write(String, byte[])}, the paths are used as given.
+ */
+public final class QOITranscoder {
+
+    private QOITranscoder(){}
+
+    // ==================================================================================
+    // ================================== PNG TO QOI ====================================
+    // ==================================================================================
+
+    /**
+     * Convert an image (png, jpeg ...) to a "Quite Ok Image" file. The pixels are read row
+     * by row from the decoded raster and encoded on the fly
+     * @param inputFile (String) - Path to the image
+     * @param outputFile (String) - Path to the "Quite Ok Image" file to write
+     */
+    public static void pngToQoi(String inputFile, String outputFile){
+        pngToQoi(inputFile, outputFile, false);
+    }
+
+    /**
+     * Convert an image (png, jpeg ...) to a "Quite Ok Image" file. The pixels are read row
+     * by row from the decoded raster and encoded on the fly
+     * @param inputFile (String) - Path to the image
+     * @param outputFile (String) - Path to the "Quite Ok Image" file to write
+     * @param detectAlpha (boolean) - Write images whose pixels are all opaque with {@link QOISpecification#RGB} channels
+     */
+    @SuppressWarnings("try")
+    public static void pngToQoi(String inputFile, String outputFile, boolean detectAlpha){
+        assert inputFile != null && outputFile != null;
+        // the decoded raster is the working set, reserved from the header before ImageIO allocates it
+        try (var ignored = MemoryBudget.global().reserve(readImageBytes(inputFile))) {
+            var image = readImage(inputFile);
+            try (var output = Files.newOutputStream(Path.of(outputFile))) {
+                encode(image, output, detectAlpha);
+            } catch (IOException e){
+                Helper.fail("An error occurred while trying to write to : \"%s\"%n", outputFile);
+            }
+        }
+    }
+
+    /**
+     * Read and decode an image from the disk, without converting its pixels
+     * @param path (String) - Path to the image (png, jpeg ...)
+     * @return (BufferedImage) - The image, as decoded by ImageIO
+     */
+    public static BufferedImage readImage(String path){
+        try (var input = new BufferedInputStream(Files.newInputStream(Path.of(path)))) {
+            var image = ImageIO.read(input);
+            return image != null ? image : Helper.fail("Unsupported image format : \"%s\"%n", path);
+        } catch (IOException e){
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Memory used by the raster of {@link #readImage(String)}, from the dimensions and the pixel size
+     * announced by the header of the image
+     * @param path (String) - Path to the image (png, jpeg ...)
+     * @return (long) - Size of the raster in bytes
+     */
+    static long readImageBytes(String path){
+        try (var input = ImageIO.createImageInputStream(Path.of(path).toFile())) {
+            var readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext())
+                return Helper.fail("Unsupported image format : \"%s\"%n", path);
+            var reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                var type = reader.getRawImageType(0);
+                // 4 bytes per pixel when the raw type is not known, the size of the converted ARGB pixels
+                int bytesPerPixel = type == null ? Integer.BYTES : (type.getColorModel().getPixelSize() + 7) / 8;
+                return (long) reader.getWidth(0) * reader.getHeight(0) * bytesPerPixel;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e){
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Encode a decoded image as a "Quite Ok Image" file, one row at a time
+     * @param image (BufferedImage) - Image to encode
+     * @param output (OutputStream) - Destination of the file, not closed
+     */
+    public static void encode(BufferedImage image, OutputStream output){
+        encode(image, output, false);
+    }
+
+    /**
+     * Encode a decoded image as a "Quite Ok Image" file, one row at a time
+     * @param image (BufferedImage) - Image to encode
+     * @param output (OutputStream) - Destination of the file, not closed
+     * @param detectAlpha (boolean) - If true, the alpha plane is scanned first and an image
+     *                    with only opaque pixels is written with {@link QOISpecification#RGB} channels
+     */
+    public static void encode(BufferedImage image, OutputStream output, boolean detectAlpha){
+        assert image != null && output != null;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        var channels = channels(image);
+        int[] row = new int[width];
+        boolean opaque = channels == QOISpecification.RGB;
+        if (!opaque && detectAlpha) {
+            opaque = true;
+            for (int y = 0; y < height && opaque; y++) {
+                readRow(image, y, row);
+                for (int x = 0; x < width && opaque; x++) {
+                    opaque = row[x] >>> 24 == 0xFF;
+                }
+            }
+            if (opaque) {
+                channels = QOISpecification.RGB;
+            }
+        }
+        var encoder = opaque
+                ? QOIStreamEncoder.opaque(output, width, height, channels, QOISpecification.sRGB)
+                : new QOIStreamEncoder(output, width, height, channels, QOISpecification.sRGB);
+        for (int y = 0; y < height; y++) {
+            readRow(image, y, row);
+            encoder.pushRow(row);
+        }
+        encoder.finish();
+    }
+
+    // ==================================================================================
+    // ================================== QOI TO PNG ====================================
+    // ==================================================================================
+
+    /**
+     * Convert a "Quite Ok Image" file to a "PNG" image. The file is decoded while it is read and
+     * the rows are compressed on several threads by the {@link PNGWriter}
+     * @param inputFile (String) - Path to the "Quite Ok Image" file
+     * @param outputFile (String) - Path to the image to write
+     */
+    public static void qoiToPng(String inputFile, String outputFile){
+        qoiToPng(inputFile, outputFile, PNGWriter.defaults());
+    }
+
+    /**
+     * Convert a "Quite Ok Image" file to a "PNG" image with the given compression settings
+     * @param inputFile (String) - Path to the "Quite Ok Image" file
+     * @param outputFile (String) - Path to the image to write
+     * @param writer (PNGWriter) - Compression level, filters and threads of the "PNG" image
+     */
+    public static void qoiToPng(String inputFile, String outputFile, PNGWriter writer){
+        assert inputFile != null && outputFile != null && writer != null;
+        try (var input = Files.newInputStream(Path.of(inputFile))) {
+            var decoder = new QOIStreamDecoder(input);
+            try (var output = new BufferedOutputStream(Files.newOutputStream(Path.of(outputFile)))) {
+                writer.write(decoder, output);
+            } catch (IOException e){
+                Helper.fail("An error occurred while trying to write to : \"%s\"%n", outputFile);
+            }
+        } catch (IOException e){
+            Helper.fail("An error occurred while trying to read from : \"%s\"%n", inputFile);
+        }
+    }
+
+    /**
+     * Decode an image into a {@link BufferedImage} of the type used by {@link Helper#writeImage(String, Helper.Image)} :
+     * {@link BufferedImage#TYPE_3BYTE_BGR} for 3 channels and {@link BufferedImage#TYPE_4BYTE_ABGR} for 4 channels.
+     * The pixels are written straight into the data buffer of the image
+     * @param decoder (QOIStreamDecoder) - Decoder positioned on the first pixel
+     * @return (BufferedImage) - The decoded image
+     */
+    public static BufferedImage decode(QOIStreamDecoder decoder){
+        assert decoder != null;
+        boolean alpha = decoder.channels() == QOISpecification.RGBA;
+        var image = new BufferedImage(decoder.width(), decoder.height(),
+                alpha ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        // freshly created images are tightly packed, pixel after pixel, row after row
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int i = 0;
+        if (alpha) {
+            while (i < data.length) {
+                int pixel = decoder.next();
+                data[i++] = (byte) (pixel >>> 24);
+                data[i++] = (byte) pixel;
+                data[i++] = (byte) (pixel >> 8);
+                data[i++] = (byte) (pixel >> 16);
+            }
+        } else {
+            while (i < data.length) {
+                int pixel = decoder.next();
+                data[i++] = (byte) pixel;
+                data[i++] = (byte) (pixel >> 8);
+                data[i++] = (byte) (pixel >> 16);
+            }
+        }
+        decoder.checkEnd();
+        return image;
+    }
+
+    // ==================================================================================
+    // ================================= RASTER ACCESS ==================================
+    // ==================================================================================
+
+    /**
+     * Number of channels of an image, chosen as in {@link Helper#readImage(String)}
+     * @param image (BufferedImage) - The image
+     * @return (byte) - {@link QOISpecification#RGBA} if the image has an alpha channel, {@link QOISpecification#RGB} otherwise
+     */
+    static byte channels(BufferedImage image){
+        return image.getColorModel().hasAlpha() ? QOISpecification.RGBA : QOISpecification.RGB;
+    }
+
+    /**
+     * Read a row of an image as ARGB pixels, the same values as {@link BufferedImage#getRGB(int, int)}.
+     * The usual raster layouts are read directly from their data buffer
+     * @param image (BufferedImage) - The image
+     * @param y (int) - Index of the row
+     * @param row (int[]) - Destination, at least as long as the width of the image
+     */
+    static void readRow(BufferedImage image, int y, int[] row){
+        int width = image.getWidth();
+        var raster = image.getRaster();
+        var sampleModel = raster.getSampleModel();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR -> {
+                if (!(raster.getDataBuffer() instanceof DataBufferByte buffer)
+                        || !(sampleModel instanceof ComponentSampleModel csm))
+                    break;
+                byte[] data = buffer.getData();
+                int pixelStride = csm.getPixelStride();
+                int[] bands = csm.getBandOffsets();
+                int base = buffer.getOffset() + (y - ty) * csm.getScanlineStride() - tx * pixelStride;
+                if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+                    // bands are stored as R, G, B, A
+                    for (int x = 0, i = base; x < width; x++, i += pixelStride) {
+                        row[x] = (data[i + bands[3]] & 0xFF) << 24
+                                | (data[i + bands[0]] & 0xFF) << 16
+                                | (data[i + bands[1]] & 0xFF) << 8
+                                | (data[i + bands[2]] & 0xFF);
+                    }
+                } else {
+                    for (int x = 0, i = base; x < width; x++, i += pixelStride) {
+                        row[x] = 0xFF000000
+                                | (data[i + bands[0]] & 0xFF) << 16
+                                | (data[i + bands[1]] & 0xFF) << 8
+                                | (data[i + bands[2]] & 0xFF);
+                    }
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                if (!(raster.getDataBuffer() instanceof DataBufferInt buffer)
+                        || !(sampleModel instanceof SinglePixelPackedSampleModel sppsm))
+                    break;
+                int base = buffer.getOffset() + (y - ty) * sppsm.getScanlineStride() - tx;
+                System.arraycopy(buffer.getData(), base, row, 0, width);
+                if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                    for (int x = 0; x < width; x++) {
+                        row[x] |= 0xFF000000;
+                    }
+                }
+                return;
+            }
+            default -> {
+            }
+        }
+        // Any other layout goes through the color model
+        image.getRGB(0, y, width, 1, row, 0, width);
+    }
+
+    /**
+     * Write ARGB pixels in a row of an image, the same as {@link BufferedImage#setRGB(int, int, int, int, int[], int, int)}.
+     * The usual raster layouts are written directly to their data buffer
+     * @param image (BufferedImage) - The image
+     * @param x (int) - Column of the first pixel
+     * @param y (int) - Index of the row
+     * @param row (int[]) - The pixels
+     * @param length (int) - Number of pixels to write
+     */
+    static void writeRow(BufferedImage image, int x, int y, int[] row, int length){
+        var raster = image.getRaster();
+        var sampleModel = raster.getSampleModel();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR -> {
+                if (!(raster.getDataBuffer() instanceof DataBufferByte buffer)
+                        || !(sampleModel instanceof ComponentSampleModel csm))
+                    break;
+                byte[] data = buffer.getData();
+                int pixelStride = csm.getPixelStride();
+                int[] bands = csm.getBandOffsets();
+                int base = buffer.getOffset() + (y - ty) * csm.getScanlineStride() + (x - tx) * pixelStride;
+                boolean alpha = image.getType() == BufferedImage.TYPE_4BYTE_ABGR;
+                for (int i = 0, j = base; i < length; i++, j += pixelStride) {
+                    int pixel = row[i];
+                    data[j + bands[0]] = (byte) (pixel >> 16);
+                    data[j + bands[1]] = (byte) (pixel >> 8);
+                    data[j + bands[2]] = (byte) pixel;
+                    if (alpha) {
+                        data[j + bands[3]] = (byte) (pixel >>> 24);
+                    }
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                if (!(raster.getDataBuffer() instanceof DataBufferInt buffer)
+                        || !(sampleModel instanceof SinglePixelPackedSampleModel sppsm))
+                    break;
+                int base = buffer.getOffset() + (y - ty) * sppsm.getScanlineStride() + x - tx;
+                System.arraycopy(row, 0, buffer.getData(), base, length);
+                if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                    int[] data = buffer.getData();
+                    for (int i = base; i < base + length; i++) {
+                        data[i] &= 0xFFFFFF;
+                    }
+                }
+                return;
+            }
+            default -> {
+            }
+        }
+        image.setRGB(x, y, length, 1, row, 0, length);
+    }
+
+}